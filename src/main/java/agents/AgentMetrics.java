@@ -0,0 +1,95 @@
+package agents;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import coinbase.Metrics;
+import coinbase.RateCounter;
+
+/**
+ * Counts an agent's decisions. Published over JMX as agents:type=Agent once
+ * the agent makes its first decision, until the agent is closed. The MBean
+ * server holds on to the agent and its windows while it is published.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    private static final AtomicInteger AGENTS = new AtomicInteger();
+
+    private final BaseAgent agent;
+    private final String name;
+    private final RateCounter decisions = new RateCounter();
+    private final LongAdder decisionNanos = new LongAdder();
+    private volatile boolean registered;
+    private ObjectName objectName;
+    private boolean closed;
+
+    AgentMetrics(BaseAgent agent) {
+        this.agent = agent;
+        this.name = agent.getClass().getSimpleName() + "-" + AGENTS.incrementAndGet();
+    }
+
+    void record(long nanos) {
+        if (!registered) {
+            register();
+        }
+        decisions.increment();
+        decisionNanos.add(nanos);
+    }
+
+    private synchronized void register() {
+        if (!registered && !closed) {
+            objectName = Metrics.register("agents", "Agent", name, this);
+        }
+        registered = true;
+    }
+
+    /**
+     * Unpublishes the MBean, for good.
+     */
+    synchronized void unregister() {
+        closed = true;
+        registered = true;
+        Metrics.unregister(objectName);
+        objectName = null;
+    }
+
+    /**
+     * @return the name the MBean is published under, or null if it isn't.
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public String getAgent() {
+        return name;
+    }
+
+    @Override
+    public long getDecisions() {
+        return decisions.get();
+    }
+
+    @Override
+    public double getDecisionsPerSecond() {
+        return decisions.getRate();
+    }
+
+    @Override
+    public double getMeanDecisionMicros() {
+        long count = decisions.get();
+        return count == 0 ? 0 : decisionNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public double getUSD() {
+        return agent.myUSD;
+    }
+
+    @Override
+    public double getBTC() {
+        return agent.myBTC;
+    }
+}
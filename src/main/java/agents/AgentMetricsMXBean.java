@@ -0,0 +1,20 @@
+package agents;
+
+/**
+ * How often an agent decides and how long it takes, as seen over JMX. See
+ * AgentMetrics.
+ */
+public interface AgentMetricsMXBean {
+
+    String getAgent();
+
+    long getDecisions();
+
+    double getDecisionsPerSecond();
+
+    double getMeanDecisionMicros();
+
+    double getUSD();
+
+    double getBTC();
+}
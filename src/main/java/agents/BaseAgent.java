@@ -1,31 +1,34 @@
 package agents;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import coinbase.Latency;
+import coinbase.MarketEvent;
+import coinbase.MarketListener;
 
-import org.eclipse.jetty.websocket.api.WebSocketAdapter;
-
-public abstract class BaseAgent {
+public abstract class BaseAgent implements AutoCloseable {
 
     protected double myUSD, myBTC;
 
     protected int myWindowSize;
 
+    private final AgentMetrics metrics = new AgentMetrics(this);
+
     /*
-     * These deques are representative of fixed length windows. Imagine that
-     * each one is placed on a data timeline and scan it from left to right.
+     * These windows are fixed length. Imagine that each one is placed on a
+     * data timeline and scan it from left to right. Each keeps its own sum,
+     * mean, variance, min, max and VWAP up to date, so decisions needn't scan
+     * them.
      */
 
     // Correspond to the MATCH type messages
-    protected final Deque<Double> matches;
+    protected final StatsWindow matches;
     // Correspond to the RECEIVE type messages
-    protected final Deque<Double> buys;
-    protected final Deque<Double> sells;
+    protected final StatsWindow buys;
+    protected final StatsWindow sells;
     // Correspond to the OPEN type messages
-    protected final Deque<Double> opens;
+    protected final StatsWindow opens;
     // Correspond to the DONE type messages
-    protected final Deque<Double> cancelled;
-    protected final Deque<Double> completed;
+    protected final StatsWindow cancelled;
+    protected final StatsWindow completed;
 
     public BaseAgent(double initialUSD, double initialBTC, int windowSize) {
         myUSD = initialUSD;
@@ -34,29 +37,98 @@ public abstract class BaseAgent {
         myWindowSize = windowSize;
 
         // Correspond to the MATCH type messages
-        matches = new ArrayDeque<>(myWindowSize);
+        matches = new StatsWindow(myWindowSize);
         // Correspond to the RECEIVE type messages
-        buys = new ArrayDeque<>(myWindowSize);
-        sells = new ArrayDeque<>(myWindowSize);
+        buys = new StatsWindow(myWindowSize);
+        sells = new StatsWindow(myWindowSize);
         // Correspond to the OPEN type messages
-        opens = new ArrayDeque<>(myWindowSize);
+        opens = new StatsWindow(myWindowSize);
         // Correspond to the DONE type messages
-        cancelled = new ArrayDeque<>(myWindowSize);
-        completed = new ArrayDeque<>(myWindowSize);
+        cancelled = new StatsWindow(myWindowSize);
+        completed = new StatsWindow(myWindowSize);
     }
 
     public final int getWindowSize() {
         return myWindowSize;
     }
 
-    protected void incrementWindow(Deque<Double> window, double value) {
-        if (window.size() == getWindowSize()) {
-            window.removeFirst();
-        }
-        window.offerLast(value);
+    protected void incrementWindow(RingWindow window, double value) {
+        window.add(value);
+    }
+
+    /**
+     * Adds a value taken from the event, weighted by the event's size, along
+     * with its time and sequence number.
+     */
+    protected void incrementWindow(RingWindow window, double value, MarketEvent event) {
+        window.add(value, event.getSize(), event.getTime(), event.getSequence());
+    }
+
+    /*
+     * The windows, for reading their statistics from outside the agent.
+     */
+
+    public StatsWindow getMatches() {
+        return matches;
+    }
+
+    public StatsWindow getBuys() {
+        return buys;
+    }
+
+    public StatsWindow getSells() {
+        return sells;
+    }
+
+    public StatsWindow getOpens() {
+        return opens;
+    }
+
+    public StatsWindow getCancelled() {
+        return cancelled;
+    }
+
+    public StatsWindow getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the counters behind this agent's MBean.
+     */
+    public AgentMetrics getMetrics() {
+        return metrics;
     }
 
-    public abstract WebSocketAdapter getListener();
+    /**
+     * Unpublishes the agent's MBean, so the MBean server no longer keeps the
+     * agent and its windows alive. Remove the agent's listener from the client
+     * first; decisions made afterwards are still counted but not published.
+     */
+    @Override
+    public void close() {
+        metrics.unregister();
+    }
+
+    /**
+     * @return the listener to add to the CoinbaseClient so that this agent
+     *         receives decoded market events.
+     */
+    public abstract MarketListener getListener();
 
     protected abstract void makeDecision();
+
+    /**
+     * Calls makeDecision() for the event, recording how long the decision
+     * took and how long since the event was received (see Latency).
+     */
+    protected final void decide(MarketEvent event) {
+        long start = System.nanoTime();
+        makeDecision();
+        long end = System.nanoTime();
+        Latency.DECISION.record(end - start);
+        metrics.record(end - start);
+        if (event.getReceivedNanos() != 0) {
+            Latency.END_TO_END.record(end - event.getReceivedNanos());
+        }
+    }
 }
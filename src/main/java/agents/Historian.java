@@ -1,17 +1,34 @@
 package agents;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
+import coinbase.CandleArchive;
+import coinbase.Candles;
+
 public class Historian {
 
     // Holds historic bitcoin price records.
     double[][] timeline;
 
+    // Or a CandleArchive to stream them from instead.
+    Path archive;
+
     public Historian(double[][] timeline) {
         this.timeline = timeline;
     }
 
+    /**
+     * Extracts orders from a CandleArchive a block at a time, so the whole
+     * timeline is never in memory; only the features extracted are.
+     */
+    public Historian(Path archive) {
+        this.archive = archive;
+    }
+
     /**
      * Scans across the history, segmenting the data into features of length
      * windowSize. Note, this is a "latent source" scan, meaning if history goes
@@ -30,6 +47,13 @@ public class Historian {
      *         the timeline.
      */
     public History extractOrders(int windowSize, TypeFilter type, SetFilter set) {
+        if (archive != null) {
+            try {
+                return extractOrders(archive, windowSize, type, set);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         List<double[]> featuresList = new ArrayList<double[]>();
         List<Double> labels = new ArrayList<Double>();
         List<Double> volumes = new ArrayList<Double>();
@@ -57,8 +81,7 @@ public class Historian {
             }
 
             // Filter out the unwanted orders based on the TypeFilter.
-            if ((type.equals(TypeFilter.BOTH)) || (type.equals(TypeFilter.BUYS) && label > 0)
-                    || (type.equals(TypeFilter.SELLS) && label < 0)) {
+            if (accepts(type, label)) {
                 double[] features = new double[windowSize];
                 double volume = 0;
                 for (int j = i; j < i + windowSize; j++) {
@@ -75,6 +98,70 @@ public class Historian {
         return new History(featuresList, labels, volumes);
     }
 
+    /**
+     * The same scan as above, decoding the archive block by block. The last
+     * windowSize + 1 candles are kept in a ring, which is all a window and its
+     * label need.
+     */
+    private History extractOrders(Path archive, int windowSize, TypeFilter type, SetFilter set)
+            throws IOException {
+        List<double[]> featuresList = new ArrayList<double[]>();
+        List<Double> labels = new ArrayList<Double>();
+        List<Double> volumes = new ArrayList<Double>();
+
+        int ringSize = windowSize + 1;
+        double[] ringCloses = new double[ringSize];
+        double[] ringVolumes = new double[ringSize];
+
+        try (CandleArchive.Reader reader = new CandleArchive.Reader(archive)) {
+            long length = reader.getCount();
+            long left =
+                    (set.equals(SetFilter.BOTH) || set.equals(SetFilter.TRAINING)) ? 0
+                            : length / 2;
+            long right =
+                    (set.equals(SetFilter.BOTH) || set.equals(SetFilter.TESTING)) ? length
+                            : length / 2;
+
+            Candles block = new Candles(CandleArchive.DEFAULT_BLOCK_SIZE);
+            long j = 0;
+            while (j < right && reader.nextBlock(block)) {
+                double[] closes = block.column(Candles.CLOSE);
+                double[] blockVolumes = block.column(Candles.VOLUME);
+                for (int k = 0; k < block.size() && j < right; k++, j++) {
+                    ringCloses[(int) (j % ringSize)] = closes[k];
+                    ringVolumes[(int) (j % ringSize)] = blockVolumes[k];
+
+                    // Candle j labels the window [j - windowSize, j).
+                    long i = j - windowSize;
+                    if (i < left) {
+                        continue;
+                    }
+                    double label =
+                            closes[k] - ringCloses[(int) ((j - 1) % ringSize)];
+                    if (accepts(type, label)) {
+                        double[] features = new double[windowSize];
+                        double volume = 0;
+                        for (int f = 0; f < windowSize; f++) {
+                            int slot = (int) ((i + f) % ringSize);
+                            features[f] = ringCloses[slot];
+                            volume += ringVolumes[slot];
+                        }
+                        featuresList.add(features);
+                        labels.add(label);
+                        volumes.add(volume);
+                    }
+                }
+                block.clear();
+            }
+        }
+        return new History(featuresList, labels, volumes);
+    }
+
+    private static boolean accepts(TypeFilter type, double label) {
+        return (type.equals(TypeFilter.BOTH)) || (type.equals(TypeFilter.BUYS) && label > 0)
+                || (type.equals(TypeFilter.SELLS) && label < 0);
+    }
+
     public class History {
         public static final int TIME = 0;
         public static final int LOW = 1;
@@ -1,11 +1,9 @@
 package agents;
 
 import org.eclipse.jetty.websocket.api.Session;
-import org.eclipse.jetty.websocket.api.WebSocketAdapter;
-import org.json.JSONException;
-import org.json.JSONObject;
 
-import coinbase.Coinbase;
+import coinbase.MarketEvent;
+import coinbase.MarketListener;
 
 public class PeerPressureAgent extends BaseAgent {
 
@@ -16,62 +14,49 @@ public class PeerPressureAgent extends BaseAgent {
     }
 
     @Override
-    public WebSocketAdapter getListener() {
+    public MarketListener getListener() {
 
-        return new WebSocketAdapter() {
+        return new MarketListener() {
             @Override
-            public void onWebSocketConnect(Session session) {
-                super.onWebSocketConnect(session);
+            public void onConnect(Session session) {
                 System.out.println("Agent has connected");
             }
 
             @Override
-            public void onWebSocketText(String message) {
-                super.onWebSocketText(message);
-                try {
-                    JSONObject json;
-                    json = new JSONObject(message);
-
-                    String type = json.getString(Coinbase.TYPE);
-
-                    // Base case: Coinbase sent us an error.
-                    if (type.equals(Coinbase.ERROR)) {
-                        System.err.println("Coinbase sent an error: "
-                                + json.getString(Coinbase.MESSAGE));
-                        return;
-                    }
+            public void onMarketEvent(MarketEvent event) {
+
+                // Base case: Coinbase sent us an error.
+                if (event.getType() == MarketEvent.Type.ERROR) {
+                    System.err.println("Coinbase sent an error: " + event.getMessage());
+                    return;
+                }
 
-                    // Parameters
-                    //long sequence = json.getLong(Coinbase.SEQUENCE);
-                    double price = json.getDouble(Coinbase.PRICE);
-                    String side = json.getString(Coinbase.SIDE);
-
-                    if (price != 0) {
-                        // Update the chart depending on the type of message
-                        // received.
-                        if (type.equals(Coinbase.MATCH)) {
-                            if (matches.size() == 0) {
-                                double total = myUSD + (price * myBTC);
-                                System.out.format(
-                                        "Starting with %f USD and %f BTC which totals %f USD\n",
-                                        myUSD, myBTC, total);
-                            }
-                            makeDecision();
-                            incrementWindow(matches, price);
-                        } else if (type.equals(Coinbase.RECEIVED)) {
-                            if (Coinbase.BUY.equals(side)) {
-                                incrementWindow(buys, price);
-                            } else if (Coinbase.SELL.equals(side)) {
-                                incrementWindow(sells, price);
-                            } else {
-                                System.err.println("Could not recognize side: " + side);
-                            }
+                // Parameters
+                double price = event.getPrice();
+
+                if (price != 0) {
+                    // Update the chart depending on the type of message
+                    // received.
+                    if (event.getType() == MarketEvent.Type.MATCH) {
+                        if (matches.size() == 0) {
+                            double total = myUSD + (price * myBTC);
+                            System.out.format(
+                                    "Starting with %f USD and %f BTC which totals %f USD\n",
+                                    myUSD, myBTC, total);
+                        }
+                        decide(event);
+                        incrementWindow(matches, price, event);
+                    } else if (event.getType() == MarketEvent.Type.RECEIVED) {
+                        if (event.getSide() == MarketEvent.Side.BUY) {
+                            incrementWindow(buys, price, event);
+                        } else if (event.getSide() == MarketEvent.Side.SELL) {
+                            incrementWindow(sells, price, event);
                         } else {
-                            return;
+                            System.err.println("Could not recognize side: " + event.getSide());
                         }
+                    } else {
+                        return;
                     }
-                } catch (JSONException e) {
-                    e.printStackTrace();
                 }
             }
         };
@@ -82,23 +67,11 @@ public class PeerPressureAgent extends BaseAgent {
 
         if (matches.size() != 0 && sells.size() != 0 && buys.size() != 0) {
 
-            double matchTotal = 0;
-            for (double price : matches) {
-                matchTotal += price;
-            }
-            double avgMatchPrice = matchTotal / matches.size();
-
-            double buyTotal = 0;
-            for (double price : buys) {
-                buyTotal += price;
-            }
-            double avgBuyPrice = buyTotal / buys.size();
-
-            double sellTotal = 0;
-            for (double price : sells) {
-                sellTotal += price;
-            }
-            double avgSellPrice = sellTotal / sells.size();
+            // Kept up to date by the windows, so this doesn't depend on the
+            // window size.
+            double avgMatchPrice = matches.getMean();
+            double avgBuyPrice = buys.getMean();
+            double avgSellPrice = sells.getMean();
 
             if ((avgBuyPrice + avgSellPrice) / 2 > avgMatchPrice) {
                 if (myBTC > .012) {
@@ -0,0 +1,226 @@
+package agents;
+
+import java.util.NoSuchElementException;
+import java.util.function.DoubleConsumer;
+
+/**
+ * A fixed length window of the latest values, oldest first, kept in a ring of
+ * primitive doubles. <br/>
+ * <br/>
+ * Once the window is full, each value added pushes the oldest one out. Each
+ * value carries a weight (e.g. the trade size) and the time and sequence
+ * number of the message it came from.
+ * Nothing is boxed and nothing is allocated after construction: values are
+ * read by index, with forEach(), or copied out in one go into a contiguous
+ * double[] for the models. <br/>
+ * <br/>
+ * Not thread safe; an agent's windows belong to its listener's thread.
+ */
+public class RingWindow {
+
+    private final double[] values;
+    private final double[] weights;
+    private final long[] times;
+    private final long[] sequences;
+
+    // Index of the oldest value.
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity
+     *            the most values the window holds.
+     */
+    public RingWindow(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        values = new double[capacity];
+        weights = new double[capacity];
+        times = new long[capacity];
+        sequences = new long[capacity];
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == values.length;
+    }
+
+    /**
+     * Adds a value of weight 1 with no time or sequence number.
+     */
+    public void add(double value) {
+        add(value, 1, 0, 0);
+    }
+
+    /**
+     * Adds a value of weight 1.
+     */
+    public void add(double value, long time, long sequence) {
+        add(value, 1, time, sequence);
+    }
+
+    /**
+     * Adds the latest value, pushing out the oldest if the window is full.
+     *
+     * @param weight
+     *            e.g. MarketEvent.getSize().
+     * @param time
+     *            when it happened, e.g. MarketEvent.getTime().
+     * @param sequence
+     *            e.g. MarketEvent.getSequence().
+     */
+    public void add(double value, double weight, long time, long sequence) {
+        int tail;
+        if (size == values.length) {
+            tail = head;
+            head = next(head);
+        } else {
+            tail = index(size);
+            size++;
+        }
+        values[tail] = value;
+        weights[tail] = weight;
+        times[tail] = time;
+        sequences[tail] = sequence;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * @param i
+     *            0 for the oldest value, size() - 1 for the latest.
+     */
+    public double get(int i) {
+        return values[checked(i)];
+    }
+
+    public double getWeight(int i) {
+        return weights[checked(i)];
+    }
+
+    public long getTime(int i) {
+        return times[checked(i)];
+    }
+
+    public long getSequence(int i) {
+        return sequences[checked(i)];
+    }
+
+    /**
+     * @throws NoSuchElementException
+     *             if the window is empty, like Deque.getFirst().
+     */
+    public double getFirst() {
+        return values[nonEmpty(0)];
+    }
+
+    /**
+     * @throws NoSuchElementException
+     *             if the window is empty, like Deque.getLast().
+     */
+    public double getLast() {
+        return values[nonEmpty(size - 1)];
+    }
+
+    public long getLastTime() {
+        return times[nonEmpty(size - 1)];
+    }
+
+    public long getLastSequence() {
+        return sequences[nonEmpty(size - 1)];
+    }
+
+    /**
+     * Hands every value to the action, oldest first.
+     */
+    public void forEach(DoubleConsumer action) {
+        int first = Math.min(size, values.length - head);
+        for (int i = head; i < head + first; i++) {
+            action.accept(values[i]);
+        }
+        for (int i = 0; i < size - first; i++) {
+            action.accept(values[i]);
+        }
+    }
+
+    /**
+     * Copies every value, oldest first, into the array from offset.
+     *
+     * @return how many were copied, i.e. size().
+     */
+    public int copyTo(double[] into, int offset) {
+        int first = Math.min(size, values.length - head);
+        System.arraycopy(values, head, into, offset, first);
+        System.arraycopy(values, 0, into, offset + first, size - first);
+        return size;
+    }
+
+    /**
+     * Copies every time, oldest first, into the array from offset.
+     */
+    public int copyTimesTo(long[] into, int offset) {
+        int first = Math.min(size, times.length - head);
+        System.arraycopy(times, head, into, offset, first);
+        System.arraycopy(times, 0, into, offset + first, size - first);
+        return size;
+    }
+
+    /**
+     * @return a copy of every value, oldest first.
+     */
+    public double[] toArray() {
+        double[] copy = new double[size];
+        copyTo(copy, 0);
+        return copy;
+    }
+
+    private int checked(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("No value " + i + " in a window of " + size);
+        }
+        return index(i);
+    }
+
+    private int nonEmpty(int i) {
+        if (size == 0) {
+            throw new NoSuchElementException("Empty window");
+        }
+        return index(i);
+    }
+
+    private int index(int i) {
+        int index = head + i;
+        return index < values.length ? index : index - values.length;
+    }
+
+    private int next(int index) {
+        return index + 1 < values.length ? index + 1 : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(get(i));
+        }
+        return text.append(']').toString();
+    }
+}
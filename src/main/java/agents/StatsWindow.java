@@ -0,0 +1,216 @@
+package agents;
+
+/**
+ * A RingWindow that keeps its statistics up to date as values come and go, so
+ * reading them takes constant time however long the window is. <br/>
+ * <br/>
+ * Each add() does a constant amount of work on top of the ring:
+ * <ul>
+ * <li>The sum, and the weighted sums behind the VWAP, are Kahan-compensated,
+ * so adding and taking away the same values leaves almost no rounding error
+ * behind.</li>
+ * <li>The mean and variance are Welford's running ones, with the update run
+ * backwards for the value pushed out.</li>
+ * <li>The min and max come from monotonic deques of the window's positions,
+ * each position pushed and popped at most once (amortized O(1)).</li>
+ * </ul>
+ * Whatever error the running figures still build up is thrown away once per
+ * window length of evictions, when they are recomputed from the ring, which
+ * is also amortized O(1).
+ */
+public class StatsWindow extends RingWindow {
+
+    // Kahan sums: the total and the lost low-order bits.
+    private double sum, sumError;
+    private double weighted, weightedError;
+    private double weights, weightsError;
+
+    // Welford's running mean and sum of squared differences from it.
+    private double mean, m2;
+
+    // Positions (counts of values ever added) of the candidates for min and
+    // max, oldest first; their values increase and decrease respectively.
+    private final long[] minPositions;
+    private final long[] maxPositions;
+    private int minHead, minSize;
+    private int maxHead, maxSize;
+
+    // How many values have been added, i.e. the next value's position.
+    private long added;
+    private int evictions;
+
+    public StatsWindow(int capacity) {
+        super(capacity);
+        minPositions = new long[capacity];
+        maxPositions = new long[capacity];
+    }
+
+    @Override
+    public void add(double value, double weight, long time, long sequence) {
+        if (isFull()) {
+            evict(getFirst(), getWeight(0));
+        }
+        super.add(value, weight, time, sequence);
+        long position = added++;
+
+        addToSum(value);
+        addToWeights(value * weight, weight);
+        double delta = value - mean;
+        mean += delta / size();
+        m2 += delta * (value - mean);
+
+        while (minSize > 0 && valueAt(minPositions[back(minHead, minSize)]) >= value) {
+            minSize--;
+        }
+        minPositions[back(minHead, minSize + 1)] = position;
+        minSize++;
+        while (maxSize > 0 && valueAt(maxPositions[back(maxHead, maxSize)]) <= value) {
+            maxSize--;
+        }
+        maxPositions[back(maxHead, maxSize + 1)] = position;
+        maxSize++;
+
+        if (evictions >= capacity()) {
+            recompute();
+        }
+    }
+
+    /**
+     * Takes the oldest value out of the statistics, before the ring drops it.
+     */
+    private void evict(double value, double weight) {
+        addToSum(-value);
+        addToWeights(-value * weight, -weight);
+        int remaining = size() - 1;
+        if (remaining == 0) {
+            mean = m2 = 0;
+        } else {
+            double delta = value - mean;
+            mean -= delta / remaining;
+            m2 = Math.max(0, m2 - delta * (value - mean));
+        }
+
+        long position = added - size();
+        if (minSize > 0 && minPositions[minHead] == position) {
+            minHead = next(minHead);
+            minSize--;
+        }
+        if (maxSize > 0 && maxPositions[maxHead] == position) {
+            maxHead = next(maxHead);
+            maxSize--;
+        }
+        evictions++;
+    }
+
+    private void addToSum(double value) {
+        double y = value - sumError;
+        double t = sum + y;
+        sumError = (t - sum) - y;
+        sum = t;
+    }
+
+    private void addToWeights(double valueTimesWeight, double weight) {
+        double y = valueTimesWeight - weightedError;
+        double t = weighted + y;
+        weightedError = (t - weighted) - y;
+        weighted = t;
+
+        y = weight - weightsError;
+        t = weights + y;
+        weightsError = (t - weights) - y;
+        weights = t;
+    }
+
+    /**
+     * Replaces the running sums, mean and variance with ones computed afresh
+     * from the values in the window.
+     */
+    private void recompute() {
+        sum = sumError = weighted = weightedError = weights = weightsError = 0;
+        mean = m2 = 0;
+        for (int i = 0; i < size(); i++) {
+            double value = get(i);
+            addToSum(value);
+            addToWeights(value * getWeight(i), getWeight(i));
+            double delta = value - mean;
+            mean += delta / (i + 1);
+            m2 += delta * (value - mean);
+        }
+        evictions = 0;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        sum = sumError = weighted = weightedError = weights = weightsError = 0;
+        mean = m2 = 0;
+        minHead = minSize = maxHead = maxSize = 0;
+        evictions = 0;
+    }
+
+    private double valueAt(long position) {
+        return get((int) (position - (added - size())));
+    }
+
+    private int back(int head, int size) {
+        int index = head + size - 1;
+        return index < capacity() ? index : index - capacity();
+    }
+
+    private int next(int index) {
+        return index + 1 < capacity() ? index + 1 : 0;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the mean of the values, or 0 if there are none.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the sample variance of the values, or 0 if there are fewer
+     *         than two.
+     */
+    public double getVariance() {
+        return size() < 2 ? 0 : m2 / (size() - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return the smallest value, or NaN if there are none.
+     */
+    public double getMin() {
+        return minSize == 0 ? Double.NaN : valueAt(minPositions[minHead]);
+    }
+
+    /**
+     * @return the largest value, or NaN if there are none.
+     */
+    public double getMax() {
+        return maxSize == 0 ? Double.NaN : valueAt(maxPositions[maxHead]);
+    }
+
+    /**
+     * @return the mean of the values weighted by their weights, e.g. the
+     *         volume weighted average price when the values are prices and
+     *         the weights sizes, or NaN if the weights add up to 0.
+     */
+    public double getVwap() {
+        return weights == 0 ? Double.NaN : weighted / weights;
+    }
+
+    /**
+     * @return the total of the weights, e.g. the volume.
+     */
+    public double getTotalWeight() {
+        return weights;
+    }
+}
@@ -0,0 +1,308 @@
+package coinbase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches candles over a range of any length. <br/>
+ * <br/>
+ * The candles endpoint only returns a page of candles per request, so the
+ * range is split into page sized windows, up to maxInFlight of which are
+ * requested at once; each window that arrives lets the next one go. Requests
+ * go out no faster than the RateLimiter allows, and a failed window is
+ * retried with exponential backoff. A permit is only reserved as a window is
+ * sent, and if the backfill fails any still unused are handed back, so a
+ * failed backfill never leaves a shared limiter in debt. Once every window is in, the pages are
+ * merged into one array in ascending time order with duplicate candles, and
+ * any at or after the end of the range, removed. <br/>
+ * <br/>
+ * Each page is parsed as it arrives straight into a Candles' columns, so a
+ * backfill only ever holds the candles themselves, never the response text.
+ */
+public class Backfill {
+
+    // The most candles the API returns for one request.
+    public static final int MAX_CANDLES_PER_REQUEST = 200;
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    /**
+     * Told about each window as it arrives.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on an HTTP thread.
+         *
+         * @param windowsDone
+         *            how many windows have arrived so far.
+         * @param windows
+         *            how many windows the range was split into.
+         * @param candles
+         *            how many candles have arrived so far.
+         * @param candlesPerSecond
+         *            the average throughput since the backfill started.
+         */
+        void onProgress(int windowsDone, int windows, long candles, double candlesPerSecond);
+    }
+
+    private final RestClient rest;
+    private final RateLimiter limiter;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private ProgressListener progress;
+
+    public Backfill(RestClient rest, RateLimiter limiter) {
+        this.rest = rest;
+        this.limiter = limiter;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param maxInFlight
+     *            how many windows may be requested (or waiting to be retried)
+     *            at once.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setProgressListener(ProgressListener progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Fetches every candle in the range and waits for them.
+     *
+     * @param granularity
+     *            the width of each candle in seconds.
+     * @return the candles in ascending time order.
+     */
+    public Candles fetch(String productId, Date startDate, Date endDate, int granularity)
+            throws Exception {
+        try {
+            return fetchAsync(productId, startDate, endDate, granularity).get();
+        } catch (ExecutionException e) {
+            // Rethrow what actually went wrong.
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Like fetch(), but doesn't wait. If any window still fails after
+     * maxRetries retries the whole backfill fails.
+     */
+    public CompletableFuture<Candles> fetchAsync(String productId, Date startDate,
+            Date endDate, int granularity) {
+        return new Run(productId, startDate.getTime() / 1000, endDate.getTime() / 1000,
+                granularity).start();
+    }
+
+    /**
+     * Joins the pages oldest first, dropping candles already seen and any
+     * starting at or after end, in seconds.
+     */
+    static Candles merge(Candles[] pages, long end) {
+        int total = 0;
+        for (Candles page : pages) {
+            total += page.size();
+        }
+        Candles merged = new Candles(total);
+        double last = Double.NEGATIVE_INFINITY;
+        for (Candles page : pages) {
+            page = ascending(page);
+            for (int i = 0; i < page.size(); i++) {
+                // Neighbouring windows share their boundary candle.
+                double time = page.get(i, Candles.TIME);
+                if (time > last && time < end) {
+                    merged.add(time, page.get(i, Candles.LOW), page.get(i, Candles.HIGH),
+                            page.get(i, Candles.OPEN), page.get(i, Candles.CLOSE),
+                            page.get(i, Candles.VOLUME));
+                    last = time;
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The server sends a page newest first; put it oldest first.
+     */
+    private static Candles ascending(Candles page) {
+        double[] times = page.column(Candles.TIME);
+        boolean ascending = true;
+        boolean descending = true;
+        for (int i = 1; i < page.size(); i++) {
+            ascending &= times[i] > times[i - 1];
+            descending &= times[i] < times[i - 1];
+        }
+        if (ascending) {
+            return page;
+        }
+        double[][] rows = page.toRows();
+        if (descending) {
+            Collections.reverse(Arrays.asList(rows));
+        } else {
+            Arrays.sort(rows, Comparator.comparingDouble(candle -> candle[Candles.TIME]));
+        }
+        return Candles.fromRows(rows);
+    }
+
+    /**
+     * The state of one call to fetchAsync().
+     */
+    private class Run {
+        private final String productId;
+        private final long start;
+        private final long end;
+        private final int granularity;
+        private final long windowSeconds;
+
+        private final Candles[] pages;
+        private final int[] attempts;
+        private final Backoff[] backoffs;
+
+        private final AtomicInteger remaining;
+        // The next window to request.
+        private final AtomicInteger next = new AtomicInteger();
+        // Permits reserved for requests that haven't gone out yet.
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final AtomicLong candles = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+
+        private final CompletableFuture<Candles> result = new CompletableFuture<>();
+
+        // Holds each request until the rate limiter lets it go.
+        private final ScheduledExecutorService scheduler = Executors
+                .newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "Backfill");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        Run(String productId, long start, long end, int granularity) {
+            this.productId = productId;
+            this.start = start;
+            this.end = end;
+            this.granularity = granularity;
+            this.windowSeconds = (long) MAX_CANDLES_PER_REQUEST * granularity;
+
+            int windows = (int) Math.max(1, (end - start + windowSeconds - 1) / windowSeconds);
+            this.pages = new Candles[windows];
+            this.attempts = new int[windows];
+            this.backoffs = new Backoff[windows];
+            this.remaining = new AtomicInteger(windows);
+        }
+
+        CompletableFuture<Candles> start() {
+            result.whenComplete((candles, error) -> {
+                scheduler.shutdownNow();
+                int unused = reserved.getAndSet(0);
+                if (unused > 0) {
+                    limiter.refund(unused);
+                }
+            });
+            for (int i = 0; i < Math.min(maxInFlight, pages.length); i++) {
+                submitNext();
+            }
+            return result;
+        }
+
+        private void submitNext() {
+            int window = next.getAndIncrement();
+            if (window < pages.length) {
+                submit(window);
+            }
+        }
+
+        private void submit(int window) {
+            if (result.isDone()) {
+                return;
+            }
+            reserved.incrementAndGet();
+            long delay = limiter.reserve();
+            try {
+                scheduler.schedule(() -> send(window), delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down because another window gave up. Hand the permit
+                // back unless the shutdown already counted it.
+                if (reserved.getAndUpdate(n -> n > 0 ? n - 1 : n) > 0) {
+                    limiter.refund(1);
+                }
+            }
+        }
+
+        private void send(int window) {
+            reserved.decrementAndGet();
+            long from = start + window * windowSeconds;
+            // The last window stops at the end of the range.
+            long to = Math.min(from + windowSeconds, end);
+            String url = CoinbaseClient.candlesUrl(productId, from, to, granularity);
+            // Parsed as it arrives, straight into columns.
+            CandleParser parser = new CandleParser(new Candles(MAX_CANDLES_PER_REQUEST));
+            rest.getAsync(url, parser).whenComplete((page, error) -> {
+                if (error == null) {
+                    received(window, page);
+                } else {
+                    failed(window, error);
+                }
+            });
+        }
+
+        private void received(int window, Candles page) {
+            pages[window] = page;
+            long total = candles.addAndGet(page.size());
+            int left = remaining.decrementAndGet();
+            submitNext();
+
+            if (progress != null) {
+                double seconds = (System.nanoTime() - startNanos) / 1e9;
+                progress.onProgress(pages.length - left, pages.length, total, total / seconds);
+            }
+            if (left == 0) {
+                result.complete(merge(pages, end));
+            }
+        }
+
+        private void failed(int window, Throwable error) {
+            synchronized (this) {
+                if (attempts[window]++ >= maxRetries) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                if (backoffs[window] == null) {
+                    backoffs[window] = new Backoff(1000, 30000);
+                }
+            }
+            long delay = backoffs[window].nextDelayMillis();
+            System.err.println("Retrying candles window " + window + " in " + delay + "ms: "
+                    + error);
+            try {
+                scheduler.schedule(() -> submit(window), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down because another window gave up.
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package coinbase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter: each failure doubles the delay before the
+ * next attempt, up to a maximum, and a success starts over from the initial
+ * delay. The jitter keeps many clients (or many requests) from retrying in
+ * lockstep.
+ */
+public class Backoff {
+
+    private final long initialMillis;
+    private final long maxMillis;
+
+    private int failures;
+
+    /**
+     * @param initialMillis
+     *            the delay after the first failure.
+     * @param maxMillis
+     *            the longest we will ever wait.
+     */
+    public Backoff(long initialMillis, long maxMillis) {
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Records a failure.
+     *
+     * @return how long to wait before trying again.
+     */
+    public synchronized long nextDelayMillis() {
+        // Cap the shift so we don't overflow.
+        long delay = Math.min(maxMillis, initialMillis << Math.min(failures, 30));
+        failures++;
+        // Wait somewhere between half and all of the delay.
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Records a success, so the next failure waits the initial delay again.
+     */
+    public synchronized void reset() {
+        failures = 0;
+    }
+
+    /**
+     * @return how many failures in a row have been recorded.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,220 @@
+package coinbase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fixed layout binary encoding of the feed's match, received, open, done
+ * and change messages, read and written in place by a flyweight. <br/>
+ * <br/>
+ * Every field sits at a fixed offset, so wrap() costs nothing and each getter
+ * is a single read; nothing is parsed and nothing is allocated. Prices and
+ * sizes are whole numbers of OrderBook ticks (1e-8), which is exactly what
+ * the feed sends. The layout, in little endian:
+ *
+ * <pre>
+ *  0  byte  type       (MarketEvent.Type.getCode())
+ *  1  byte  side       (MarketEvent.Side.getCode())
+ *  2  byte  product    (index into Coinbase.PRODUCTS)
+ *  3  byte  flags      (1 = canceled)
+ *  4  long  sequence
+ * 12  long  time       (the exchange's, microseconds since the epoch, or 0)
+ * 20  long  received   (nanoseconds since the epoch)
+ * 28  long  price
+ * 36  long  size       (remaining_size for open and done, new_size for change)
+ * 44  uuid  order_id   (maker_order_id for match)
+ * 60  uuid  taker_order_id, match only
+ * </pre>
+ *
+ * A match takes 76 bytes and everything else 60. The buffer must be little
+ * endian.
+ */
+public final class BinaryTick {
+
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int MATCH_LENGTH = 76;
+    public static final int ORDER_LENGTH = 60;
+    public static final int MAX_LENGTH = MATCH_LENGTH;
+
+    private static final int TYPE = 0;
+    private static final int SIDE = 1;
+    private static final int PRODUCT = 2;
+    private static final int FLAGS = 3;
+    private static final int SEQUENCE = 4;
+    private static final int TIME = 12;
+    private static final int RECEIVED = 20;
+    private static final int PRICE = 28;
+    private static final int SIZE = 36;
+    private static final int ORDER_ID = 44;
+    private static final int TAKER_ORDER_ID = 60;
+
+    private static final int CANCELED = 1;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * Points the flyweight at the tick starting at offset.
+     */
+    public BinaryTick wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * @return whether the event can be encoded: one of the five order
+     *         messages, for a product in Coinbase.PRODUCTS.
+     */
+    public static boolean canEncode(MarketEvent event) {
+        switch (event.type) {
+        case MATCH:
+        case RECEIVED:
+        case OPEN:
+        case DONE:
+        case CHANGE:
+            return productIndex(event.productId) >= 0;
+        default:
+            return false;
+        }
+    }
+
+    public static int encodedLength(MarketEvent.Type type) {
+        return type == MarketEvent.Type.MATCH ? MATCH_LENGTH : ORDER_LENGTH;
+    }
+
+    /**
+     * Writes the event at the wrapped offset. Check canEncode() first.
+     *
+     * @return the number of bytes written.
+     */
+    public int encode(MarketEvent event, long receivedNanos) {
+        buffer.put(offset + TYPE, (byte) event.type.getCode());
+        buffer.put(offset + SIDE, (byte) event.side.getCode());
+        buffer.put(offset + PRODUCT, (byte) productIndex(event.productId));
+        buffer.put(offset + FLAGS, (byte) (event.canceled ? CANCELED : 0));
+        buffer.putLong(offset + SEQUENCE, event.sequence);
+        buffer.putLong(offset + TIME, event.time);
+        buffer.putLong(offset + RECEIVED, receivedNanos);
+        buffer.putLong(offset + PRICE, OrderBook.toTicks(event.price));
+        if (event.type == MarketEvent.Type.MATCH) {
+            buffer.putLong(offset + SIZE, OrderBook.toTicks(event.size));
+            buffer.putLong(offset + ORDER_ID, event.makerOrderIdHigh);
+            buffer.putLong(offset + ORDER_ID + 8, event.makerOrderIdLow);
+            buffer.putLong(offset + TAKER_ORDER_ID, event.takerOrderIdHigh);
+            buffer.putLong(offset + TAKER_ORDER_ID + 8, event.takerOrderIdLow);
+            return MATCH_LENGTH;
+        }
+        double size = event.type == MarketEvent.Type.RECEIVED ? event.size : event.remainingSize;
+        buffer.putLong(offset + SIZE, OrderBook.toTicks(size));
+        buffer.putLong(offset + ORDER_ID, event.orderIdHigh);
+        buffer.putLong(offset + ORDER_ID + 8, event.orderIdLow);
+        return ORDER_LENGTH;
+    }
+
+    /**
+     * Fills the event from the wrapped tick.
+     *
+     * @return the number of bytes read.
+     */
+    public int decode(MarketEvent event) {
+        event.clear();
+        event.type = getType();
+        event.side = getSide();
+        event.productId = getProductId();
+        event.canceled = isCanceled();
+        event.sequence = getSequence();
+        event.time = getTime();
+        event.price = OrderBook.fromTicks(getPriceTicks());
+        double size = OrderBook.fromTicks(getSizeTicks());
+        if (event.type == MarketEvent.Type.MATCH) {
+            event.size = size;
+            event.makerOrderIdHigh = getOrderIdHigh();
+            event.makerOrderIdLow = getOrderIdLow();
+            event.takerOrderIdHigh = buffer.getLong(offset + TAKER_ORDER_ID);
+            event.takerOrderIdLow = buffer.getLong(offset + TAKER_ORDER_ID + 8);
+            return MATCH_LENGTH;
+        }
+        if (event.type == MarketEvent.Type.RECEIVED) {
+            event.size = size;
+        } else {
+            event.remainingSize = size;
+        }
+        event.orderIdHigh = getOrderIdHigh();
+        event.orderIdLow = getOrderIdLow();
+        return ORDER_LENGTH;
+    }
+
+    public int getLength() {
+        return encodedLength(getType());
+    }
+
+    public MarketEvent.Type getType() {
+        return MarketEvent.Type.ofCode(buffer.get(offset + TYPE));
+    }
+
+    public MarketEvent.Side getSide() {
+        return MarketEvent.Side.ofCode(buffer.get(offset + SIDE));
+    }
+
+    public String getProductId() {
+        return Coinbase.PRODUCTS[buffer.get(offset + PRODUCT)];
+    }
+
+    public boolean isCanceled() {
+        return (buffer.get(offset + FLAGS) & CANCELED) != 0;
+    }
+
+    public long getSequence() {
+        return buffer.getLong(offset + SEQUENCE);
+    }
+
+    /**
+     * @return the time the exchange gave the message, in microseconds since
+     *         the epoch, or 0 if it had none.
+     */
+    public long getTime() {
+        return buffer.getLong(offset + TIME);
+    }
+
+    /**
+     * @return when the message was received, in nanoseconds since the epoch.
+     */
+    public long getReceivedNanos() {
+        return buffer.getLong(offset + RECEIVED);
+    }
+
+    public long getPriceTicks() {
+        return buffer.getLong(offset + PRICE);
+    }
+
+    /**
+     * @return the size of a match or received message, the remaining size of
+     *         an open or done message or the new size of a change, in ticks.
+     */
+    public long getSizeTicks() {
+        return buffer.getLong(offset + SIZE);
+    }
+
+    /**
+     * @return the high half of the order id (the maker's, for a match).
+     */
+    public long getOrderIdHigh() {
+        return buffer.getLong(offset + ORDER_ID);
+    }
+
+    public long getOrderIdLow() {
+        return buffer.getLong(offset + ORDER_ID + 8);
+    }
+
+    private static int productIndex(String productId) {
+        for (int i = 0; i < Coinbase.PRODUCTS.length; i++) {
+            // The decoder hands out the constants, so this is usually identity.
+            if (Coinbase.PRODUCTS[i] == productId || Coinbase.PRODUCTS[i].equals(productId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
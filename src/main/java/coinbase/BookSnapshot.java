@@ -0,0 +1,67 @@
+package coinbase;
+
+import java.util.UUID;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A full (level 3) orderbook as returned by
+ * CoinbaseClient.getOrderbook(ResponseDetail.FULLORDER), held in primitive
+ * arrays. Index i of each bid array describes the same order; likewise for
+ * asks.
+ */
+public class BookSnapshot {
+
+    public final long sequence;
+
+    public final double[] bidPrices;
+    public final double[] bidSizes;
+    public final long[] bidOrderIdHighs;
+    public final long[] bidOrderIdLows;
+
+    public final double[] askPrices;
+    public final double[] askSizes;
+    public final long[] askOrderIdHighs;
+    public final long[] askOrderIdLows;
+
+    private BookSnapshot(long sequence, JSONArray bids, JSONArray asks) {
+        this.sequence = sequence;
+
+        bidPrices = new double[bids.length()];
+        bidSizes = new double[bids.length()];
+        bidOrderIdHighs = new long[bids.length()];
+        bidOrderIdLows = new long[bids.length()];
+        read(bids, bidPrices, bidSizes, bidOrderIdHighs, bidOrderIdLows);
+
+        askPrices = new double[asks.length()];
+        askSizes = new double[asks.length()];
+        askOrderIdHighs = new long[asks.length()];
+        askOrderIdLows = new long[asks.length()];
+        read(asks, askPrices, askSizes, askOrderIdHighs, askOrderIdLows);
+    }
+
+    /**
+     * @param json
+     *            the text returned by getOrderbook(ResponseDetail.FULLORDER).
+     */
+    public static BookSnapshot parse(String json) throws JSONException {
+        JSONObject book = new JSONObject(json);
+        return new BookSnapshot(book.getLong(Coinbase.SEQUENCE),
+                book.getJSONArray(Coinbase.BIDS), book.getJSONArray(Coinbase.ASKS));
+    }
+
+    // Each entry looks like [price, size, order_id].
+    private static void read(JSONArray entries, double[] prices, double[] sizes,
+            long[] orderIdHighs, long[] orderIdLows) {
+        for (int i = 0; i < prices.length; i++) {
+            JSONArray entry = entries.getJSONArray(i);
+            prices[i] = entry.getDouble(0);
+            sizes[i] = entry.getDouble(1);
+            UUID orderId = UUID.fromString(entry.getString(2));
+            orderIdHighs[i] = orderId.getMostSignificantBits();
+            orderIdLows[i] = orderId.getLeastSignificantBits();
+        }
+    }
+}
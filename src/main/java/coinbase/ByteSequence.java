@@ -0,0 +1,68 @@
+package coinbase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lets the FeedDecoder read a message straight out of a ByteBuffer, without
+ * decoding it into a String first. <br/>
+ * <br/>
+ * Each byte is one char. That is exact for ASCII, which is everything the
+ * decoder looks at (keys, numbers, ids, types); any other UTF-8 can only be
+ * inside string values, which subSequence() and toString() decode properly.
+ * The view is reused: point it at the next message with wrap().
+ */
+final class ByteSequence implements CharSequence {
+
+    private ByteBuffer buffer;
+    private int start;
+    private int length;
+
+    /**
+     * Views the bytes between the buffer's position and limit. The buffer
+     * itself is left untouched.
+     */
+    ByteSequence wrap(ByteBuffer buffer) {
+        return wrap(buffer, buffer.position(), buffer.limit());
+    }
+
+    ByteSequence wrap(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.length = end - start;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(start + index) & 0xFF);
+    }
+
+    /**
+     * @return the raw UTF-8 byte at index.
+     */
+    byte byteAt(int index) {
+        return buffer.get(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return decode(start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        return decode(start, start + length);
+    }
+
+    private String decode(int from, int to) {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(to).position(from);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+}
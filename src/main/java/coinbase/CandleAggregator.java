@@ -0,0 +1,217 @@
+package coinbase;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Builds candles from the match stream of one product as the trades happen,
+ * at one or more granularities at once. <br/>
+ * <br/>
+ * Each trade updates the open candle of every granularity in constant time.
+ * A candle closes when the first trade of a later period arrives (or when
+ * advance() is called past its end) and is appended to that granularity's
+ * timeline, a growing run of Candles in the same { time, low, high, open,
+ * close, volume } rows as getHistoricalData, so a Historian or any of the
+ * models can be fed the live timeline directly. <br/>
+ * <br/>
+ * Like the REST API, periods without a trade have no candle. Candles are
+ * timed by the trade times the feed sends, which a Journal or TickFile keeps,
+ * so a replay builds the same candles the live feed did; a match without a
+ * time can't be placed in any candle and is ignored. <br/>
+ * <br/>
+ * Add it to a CoinbaseClient as a MarketListener. The timelines can be read
+ * from any thread.
+ */
+public class CandleAggregator implements MarketListener {
+
+    /**
+     * Is told about every candle as it closes.
+     */
+    public interface Listener {
+        void onCandle(String productId, int granularity, double time, double low, double high,
+                double open, double close, double volume);
+    }
+
+    /**
+     * One granularity: the open candle and the closed ones.
+     */
+    private static final class Series {
+        final int granularity;
+        final Candles timeline = new Candles();
+
+        // The open candle, if any.
+        boolean open;
+        long start;
+        double low, high, first, last, volume;
+
+        Series(int granularity) {
+            this.granularity = granularity;
+        }
+    }
+
+    private final String productId;
+    private final Series[] series;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param granularities
+     *            the candle lengths to build, in seconds.
+     */
+    public CandleAggregator(String productId, int... granularities) {
+        if (granularities.length == 0) {
+            throw new IllegalArgumentException("No granularities");
+        }
+        this.productId = productId;
+        series = new Series[granularities.length];
+        for (int i = 0; i < granularities.length; i++) {
+            if (granularities[i] <= 0) {
+                throw new IllegalArgumentException("Bad granularity: " + granularities[i]);
+            }
+            series[i] = new Series(granularities[i]);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void onMarketEvent(MarketEvent event) {
+        if (event.type != MarketEvent.Type.MATCH || event.time == 0
+                || !productId.equals(event.productId)) {
+            return;
+        }
+        addTrade(event.time, event.price, event.size);
+    }
+
+    /**
+     * Adds one trade.
+     *
+     * @param timeMicros
+     *            when it happened, in microseconds since the epoch.
+     */
+    public synchronized void addTrade(long timeMicros, double price, double size) {
+        long seconds = Math.floorDiv(timeMicros, 1000000);
+        for (Series s : series) {
+            long start = seconds - Math.floorMod(seconds, s.granularity);
+            if (s.open && start != s.start) {
+                if (start < s.start) {
+                    // Late trade for a candle that already closed.
+                    continue;
+                }
+                close(s);
+            }
+            if (!s.open) {
+                s.open = true;
+                s.start = start;
+                s.low = s.high = s.first = price;
+                s.volume = 0;
+            }
+            if (price < s.low) {
+                s.low = price;
+            }
+            if (price > s.high) {
+                s.high = price;
+            }
+            s.last = price;
+            s.volume += size;
+        }
+    }
+
+    /**
+     * Closes every open candle whose period ended at or before the given time,
+     * so a quiet market doesn't hold the last candle open. Call it from a
+     * timer if candles are needed on time.
+     */
+    public synchronized void advance(long timeMicros) {
+        long seconds = Math.floorDiv(timeMicros, 1000000);
+        for (Series s : series) {
+            if (s.open && s.start + s.granularity <= seconds) {
+                close(s);
+            }
+        }
+    }
+
+    private void close(Series s) {
+        s.open = false;
+        s.timeline.add(s.start, s.low, s.high, s.first, s.last, s.volume);
+        for (Listener listener : listeners) {
+            listener.onCandle(productId, s.granularity, s.start, s.low, s.high, s.first, s.last,
+                    s.volume);
+        }
+    }
+
+    private Series series(int granularity) {
+        for (Series s : series) {
+            if (s.granularity == granularity) {
+                return s;
+            }
+        }
+        throw new IllegalArgumentException("Not aggregating " + granularity + "s candles");
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    public int[] getGranularities() {
+        int[] granularities = new int[series.length];
+        for (int i = 0; i < series.length; i++) {
+            granularities[i] = series[i].granularity;
+        }
+        return granularities;
+    }
+
+    /**
+     * @return how many candles of the granularity have closed.
+     */
+    public synchronized int size(int granularity) {
+        return series(granularity).timeline.size();
+    }
+
+    /**
+     * @return a copy of every closed candle of the granularity, oldest first,
+     *         in getHistoricalData's rows.
+     */
+    public synchronized double[][] getTimeline(int granularity) {
+        return series(granularity).timeline.toRows();
+    }
+
+    /**
+     * @return a copy of the last count closed candles of the granularity, or
+     *         as many as there are, oldest first.
+     */
+    public synchronized double[][] getTimeline(int granularity, int count) {
+        Candles timeline = series(granularity).timeline;
+        int from = Math.max(0, timeline.size() - count);
+        double[][] rows = new double[timeline.size() - from][];
+        for (int i = from; i < timeline.size(); i++) {
+            double[] row = new double[Candles.COLUMNS];
+            for (int j = 0; j < Candles.COLUMNS; j++) {
+                row[j] = timeline.get(i, j);
+            }
+            rows[i - from] = row;
+        }
+        return rows;
+    }
+
+    /**
+     * @return the candle still being built, or null if there is none.
+     */
+    public synchronized double[] getOpenCandle(int granularity) {
+        Series s = series(granularity);
+        if (!s.open) {
+            return null;
+        }
+        return new double[] { s.start, s.low, s.high, s.first, s.last, s.volume };
+    }
+
+    @Override
+    public String toString() {
+        return "CandleAggregator " + productId + " " + Arrays.toString(getGranularities());
+    }
+}
@@ -0,0 +1,148 @@
+package coinbase;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of candles compressed with Gorilla, in blocks. <br/>
+ * <br/>
+ * Years of candles at a fine granularity compress to a fraction of their
+ * raw size, so they can stay on local disk and in the page cache. The file
+ * is read back a block at a time, so a reader can work through it (see
+ * Historian) without ever holding every candle at once.
+ *
+ * <pre>
+ * header: int magic, int block size, long candle count
+ * block:  int candle count, int byte length, the Gorilla block
+ * </pre>
+ */
+public final class CandleArchive {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int MAGIC = 0x47434131; // GCA1
+    private static final int HEADER_BYTES = 16;
+    private static final int BLOCK_HEADER_BYTES = 8;
+
+    private CandleArchive() {
+    }
+
+    /**
+     * Writes the candles to a new archive.
+     *
+     * @return the size of the file.
+     */
+    public static long write(Path file, Candles candles) throws IOException {
+        return write(file, candles, DEFAULT_BLOCK_SIZE);
+    }
+
+    public static long write(Path file, Candles candles, int blockSize) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(blockSize).putLong(candles.size()).flip();
+            writeFully(out, header);
+
+            for (int from = 0; from < candles.size(); from += blockSize) {
+                int count = Math.min(blockSize, candles.size() - from);
+                byte[] block = Gorilla.encode(candles, from, count);
+                ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+                blockHeader.putInt(count).putInt(block.length).flip();
+                writeFully(out, blockHeader);
+                writeFully(out, ByteBuffer.wrap(block));
+            }
+            return out.size();
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a whole archive into memory.
+     */
+    public static Candles read(Path file) throws IOException {
+        try (Reader reader = new Reader(file)) {
+            Candles candles = new Candles((int) reader.getCount());
+            while (reader.nextBlock(candles)) {
+                // Appended.
+            }
+            return candles;
+        }
+    }
+
+    /**
+     * Reads an archive a block at a time.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel in;
+        private final long count;
+        private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        private byte[] block = new byte[0];
+
+        public Reader(Path file) throws IOException {
+            in = FileChannel.open(file, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(header);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not a candle archive");
+            }
+            header.getInt();
+            count = header.getLong();
+        }
+
+        /**
+         * @return the number of candles in the archive.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Appends the next block's candles.
+         *
+         * @return false at the end of the archive.
+         */
+        public boolean nextBlock(Candles into) throws IOException {
+            blockHeader.clear();
+            if (in.read(blockHeader) <= 0) {
+                return false;
+            }
+            readFully(blockHeader);
+            blockHeader.flip();
+            int candles = blockHeader.getInt();
+            int length = blockHeader.getInt();
+            if (block.length < length) {
+                block = new byte[length];
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(block, 0, length);
+            readFully(bytes);
+            Gorilla.decode(block, candles, into);
+            return true;
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    throw new EOFException("Candle archive is truncated");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package coinbase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * Parses a candles response, [[time, low, high, open, close, volume], ...],
+ * as it arrives. <br/>
+ * <br/>
+ * Each chunk of the body is consumed as soon as it is received and its
+ * numbers go straight into the Candles' columns, so the body is never held
+ * as a whole, neither as a String nor as JSON objects. A number split across
+ * two chunks is carried over in a small buffer. Throws JSONException on
+ * anything that isn't a candles array.
+ */
+public class CandleParser implements RestClient.BodyParser<Candles> {
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final Candles candles;
+
+    // 1 inside the outer array, 2 inside a candle.
+    private int depth;
+    private final double[] row = new double[Candles.COLUMNS];
+    private int column;
+
+    // The number being read, possibly continued from the last chunk.
+    private final byte[] number = new byte[64];
+    private int numberLength;
+
+    public CandleParser(Candles candles) {
+        this.candles = candles;
+    }
+
+    /**
+     * Parses the chunk, which is consumed.
+     */
+    @Override
+    public void onContent(ByteBuffer chunk) {
+        while (chunk.hasRemaining()) {
+            byte b = chunk.get();
+            switch (b) {
+            case '[':
+                if (++depth > 2) {
+                    throw new JSONException("Candles nest too deeply");
+                }
+                column = 0;
+                break;
+            case ']':
+                endNumber();
+                if (depth == 2) {
+                    if (column != Candles.COLUMNS) {
+                        throw new JSONException("A candle has " + column + " values");
+                    }
+                    candles.add(row[Candles.TIME], row[Candles.LOW], row[Candles.HIGH],
+                            row[Candles.OPEN], row[Candles.CLOSE], row[Candles.VOLUME]);
+                } else if (depth != 1) {
+                    throw new JSONException("Unbalanced ]");
+                }
+                depth--;
+                break;
+            case ',':
+                endNumber();
+                break;
+            case ' ':
+            case '\t':
+            case '\r':
+            case '\n':
+                endNumber();
+                break;
+            default:
+                if (depth != 2 || !((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.'
+                        || b == 'e' || b == 'E')) {
+                    throw new JSONException("Unexpected '" + (char) b + "' in candles");
+                }
+                if (numberLength == number.length) {
+                    throw new JSONException("Number too long in candles");
+                }
+                number[numberLength++] = b;
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the candles, once the whole body has been parsed.
+     */
+    @Override
+    public Candles finish() {
+        if (depth != 0) {
+            throw new JSONException("Candles ended early");
+        }
+        return candles;
+    }
+
+    private void endNumber() {
+        if (numberLength == 0) {
+            return;
+        }
+        if (column == Candles.COLUMNS) {
+            throw new JSONException("A candle has too many values");
+        }
+        row[column++] = parseNumber();
+        numberLength = 0;
+    }
+
+    private double parseNumber() {
+        int pos = 0;
+        boolean negative = number[0] == '-';
+        if (negative) {
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; pos < numberLength; pos++) {
+            byte b = number[pos];
+            if (b >= '0' && b <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    // Too many digits to do exactly.
+                    return slowParse();
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fraction) {
+                    scale++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                // Exponents are rare enough to leave to the JDK.
+                return slowParse();
+            }
+        }
+        if (digits == 0 || scale >= POWERS_OF_TEN.length) {
+            return slowParse();
+        }
+        // Both operands are exact, so the IEEE result is correctly rounded.
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private double slowParse() {
+        String text = new String(number, 0, numberLength, StandardCharsets.US_ASCII);
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new JSONException("Bad number in candles: " + text);
+        }
+    }
+}
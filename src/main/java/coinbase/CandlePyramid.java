@@ -0,0 +1,187 @@
+package coinbase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Stores candles once, at the finest granularity, and keeps rollups of them at
+ * coarser ones in a CandleStore. <br/>
+ * <br/>
+ * Each level rolls up the one below it (e.g. 1s to 10s to 1m to 15m to 1h),
+ * so a query at any granularity that is a multiple of a level is a range
+ * scan of the coarsest such level, rolled up the rest of the way on the fly.
+ * Only ranges the finest level hasn't stored are downloaded; a level missing
+ * a range the level below has is built from it without the network.
+ */
+public class CandlePyramid {
+
+    // 1 second, 10 seconds, 1 minute, 15 minutes and 1 hour.
+    public static final int[] DEFAULT_LEVELS = { 1, 10, 60, 900, 3600 };
+
+    private final CandleStore store;
+    private final Backfill backfill;
+    private final int[] levels;
+
+    public CandlePyramid(CandleStore store, Backfill backfill) {
+        this(store, backfill, DEFAULT_LEVELS);
+    }
+
+    /**
+     * @param backfill
+     *            fetches ranges the finest level is missing, or null to only
+     *            serve what is stored.
+     * @param levels
+     *            the granularities to store, in seconds, finest first. Each
+     *            must be a multiple of the one before.
+     */
+    public CandlePyramid(CandleStore store, Backfill backfill, int... levels) {
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] <= 0 || CandleStore.ORIGIN_SECONDS % levels[i] != 0
+                    || (i > 0 && levels[i] % levels[i - 1] != 0)) {
+                throw new IllegalArgumentException("Bad levels: " + Arrays.toString(levels));
+            }
+        }
+        if (levels.length == 0) {
+            throw new IllegalArgumentException("No levels");
+        }
+        this.store = store;
+        this.backfill = backfill;
+        this.levels = levels.clone();
+    }
+
+    public int[] getLevels() {
+        return levels.clone();
+    }
+
+    /**
+     * @param granularity
+     *            in seconds; any multiple of the finest level.
+     * @return the candles from startDate to endDate, oldest first.
+     */
+    public Candles candles(String productId, Date startDate, Date endDate, int granularity)
+            throws Exception {
+        return candles(productId, startDate.getTime() / 1000, endDate.getTime() / 1000,
+                granularity);
+    }
+
+    /**
+     * @return the candles whose period starts in [from, to) seconds, widened
+     *         to whole periods of the granularity.
+     */
+    public synchronized Candles candles(String productId, long from, long to, int granularity)
+            throws Exception {
+        int level = levels.length - 1;
+        while (level >= 0 && granularity % levels[level] != 0) {
+            level--;
+        }
+        if (level < 0) {
+            throw new IllegalArgumentException(granularity + "s isn't a multiple of "
+                    + levels[0] + "s");
+        }
+        from = floor(from, granularity);
+        to = ceil(to, granularity);
+
+        ensure(productId, level, from, to);
+        Candles candles = store.read(productId, levels[level], from, to);
+        return granularity == levels[level] ? candles : rollup(candles, granularity);
+    }
+
+    /**
+     * Stores candles at the finest granularity, e.g. ones built live by a
+     * CandleAggregator, and updates the levels above them.
+     *
+     * @param candles
+     *            everything in [from, to) seconds, oldest first.
+     */
+    public synchronized void add(String productId, long from, long to, Candles candles)
+            throws IOException {
+        store.put(productId, levels[0], from, to, candles);
+        for (int level = 1; level < levels.length; level++) {
+            // Only whole periods of this level are known.
+            long first = ceil(from, levels[level]);
+            long last = floor(to, levels[level]);
+            if (first < last) {
+                build(productId, level, first, last);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the level has stored everything in [from, to), building it
+     * from the level below, which in turn is fetched or built.
+     */
+    private void ensure(String productId, int level, long from, long to) throws Exception {
+        for (long[] range : store.missing(productId, levels[level], from, to)) {
+            if (level == 0) {
+                if (backfill == null) {
+                    throw new IllegalStateException(productId + " isn't stored from "
+                            + range[0] + " to " + range[1]);
+                }
+                Candles candles = backfill.fetch(productId, new Date(range[0] * 1000),
+                        new Date(range[1] * 1000), levels[0]);
+                store.put(productId, levels[0], range[0], range[1], candles);
+            } else {
+                ensure(productId, level - 1, range[0], range[1]);
+                build(productId, level, range[0], range[1]);
+            }
+        }
+    }
+
+    private void build(String productId, int level, long from, long to) throws IOException {
+        Candles finer = store.read(productId, levels[level - 1], from, to);
+        store.put(productId, levels[level], from, to, rollup(finer, levels[level]));
+    }
+
+    /**
+     * Combines candles into candles of a coarser granularity: the first open,
+     * the last close, the lowest low, the highest high and the total volume
+     * of each period.
+     *
+     * @param candles
+     *            oldest first.
+     * @param granularity
+     *            a multiple of the candles' granularity, in seconds.
+     */
+    public static Candles rollup(Candles candles, int granularity) {
+        Candles rolled = new Candles(candles.size() / 2 + 1);
+        double[] times = candles.column(Candles.TIME);
+        double[] lows = candles.column(Candles.LOW);
+        double[] highs = candles.column(Candles.HIGH);
+        double[] opens = candles.column(Candles.OPEN);
+        double[] closes = candles.column(Candles.CLOSE);
+        double[] volumes = candles.column(Candles.VOLUME);
+
+        long start = 0;
+        double low = 0, high = 0, open = 0, close = 0, volume = 0;
+        for (int i = 0; i < candles.size(); i++) {
+            long period = floor((long) times[i], granularity);
+            if (i == 0 || period != start) {
+                if (i > 0) {
+                    rolled.add(start, low, high, open, close, volume);
+                }
+                start = period;
+                low = lows[i];
+                high = highs[i];
+                open = opens[i];
+                volume = 0;
+            }
+            low = Math.min(low, lows[i]);
+            high = Math.max(high, highs[i]);
+            close = closes[i];
+            volume += volumes[i];
+        }
+        if (candles.size() > 0) {
+            rolled.add(start, low, high, open, close, volume);
+        }
+        return rolled;
+    }
+
+    private static long floor(long seconds, int granularity) {
+        return seconds - Math.floorMod(seconds, granularity);
+    }
+
+    private static long ceil(long seconds, int granularity) {
+        return floor(seconds + granularity - 1, granularity);
+    }
+}
@@ -0,0 +1,362 @@
+package coinbase;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps candles on disk so that history is only downloaded once. <br/>
+ * <br/>
+ * Each product and granularity has a directory holding one file per column
+ * (time, low, high, open, close and volume, as in Candles). The files are a
+ * dense grid: the candle starting at time t lives at slot (t - ORIGIN) /
+ * granularity, so finding a range is arithmetic rather than a search, and
+ * the files are memory-mapped so reading copies straight from the page cache
+ * into the Candles' arrays. Slots without a trade read as time 0. <br/>
+ * <br/>
+ * A small coverage file records which ranges of slots have been fetched, so
+ * that an empty slot in a fetched range (no trades) can be told apart from
+ * one that was never fetched. load() uses it to download only what is
+ * missing. <br/>
+ * <br/>
+ * Slots line up with the API's candles only for granularities that divide
+ * ORIGIN_SECONDS (all of the API's do), so no others are accepted. The store
+ * keeps its files open until it is closed.
+ */
+public class CandleStore implements Closeable {
+
+    // The grid starts at 2014-01-01T00:00:00Z, before the exchange opened.
+    public static final long ORIGIN_SECONDS = 1388534400L;
+
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"),
+            ".coinbase", "candles");
+
+    // Slots per mapped segment of a column file (1MB).
+    private static final int SEGMENT_SLOTS = 1 << 17;
+    private static final int SEGMENT_BYTES = SEGMENT_SLOTS * Double.BYTES;
+
+    private static final String[] COLUMN_NAMES = { "time", "low", "high", "open", "close",
+            "volume" };
+
+    private final Path directory;
+    private final Map<String, Series> series = new HashMap<String, Series>();
+    private boolean closed;
+
+    public CandleStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the candles in the range, first fetching whatever part of it the
+     * store doesn't have yet.
+     *
+     * @param backfill
+     *            fetches missing ranges.
+     * @return the candles, oldest first.
+     */
+    public Candles load(String productId, int granularity, Date startDate, Date endDate,
+            Backfill backfill) throws Exception {
+        long from = startDate.getTime() / 1000;
+        long to = endDate.getTime() / 1000;
+        for (long[] range : missing(productId, granularity, from, to)) {
+            Candles candles = backfill.fetch(productId, new Date(range[0] * 1000),
+                    new Date(range[1] * 1000), granularity);
+            put(productId, granularity, range[0], range[1], candles);
+        }
+        return read(productId, granularity, from, to);
+    }
+
+    /**
+     * @return the ranges, in seconds, within [from, to) that have not been
+     *         stored yet.
+     */
+    public synchronized List<long[]> missing(String productId, int granularity, long from,
+            long to) throws IOException {
+        Series s = series(productId, granularity);
+        long first = s.ceilSlot(from);
+        long last = s.ceilSlot(to);
+
+        List<long[]> gaps = new ArrayList<long[]>();
+        long next = first;
+        for (long[] covered : s.coverage) {
+            if (covered[1] <= next) {
+                continue;
+            }
+            if (covered[0] >= last) {
+                break;
+            }
+            if (covered[0] > next) {
+                gaps.add(new long[] { s.time(next), s.time(covered[0]) });
+            }
+            next = covered[1];
+        }
+        if (next < last) {
+            gaps.add(new long[] { s.time(next), s.time(last) });
+        }
+        return gaps;
+    }
+
+    /**
+     * Writes the candles and marks [from, to) as stored. Candles still in
+     * progress (those ending after now) are written but the range is only
+     * marked up to the last complete one, so they are fetched again later.
+     *
+     * @param candles
+     *            in any order.
+     */
+    public synchronized void put(String productId, int granularity, long from, long to,
+            Candles candles) throws IOException {
+        Series s = series(productId, granularity);
+        for (int i = 0; i < candles.size(); i++) {
+            long slot = s.slot((long) candles.get(i, Candles.TIME));
+            if (slot < 0) {
+                continue;
+            }
+            for (int column = 0; column < Candles.COLUMNS; column++) {
+                s.written(column, slot).putDouble(offset(slot), candles.get(i, column));
+            }
+        }
+        s.force();
+
+        long complete = (System.currentTimeMillis() / 1000 - ORIGIN_SECONDS) / granularity;
+        long last = Math.min(s.ceilSlot(to), complete);
+        long first = s.ceilSlot(from);
+        if (first < last) {
+            s.cover(first, last);
+        }
+    }
+
+    /**
+     * Reads the stored candles whose time is in [from, to).
+     *
+     * @return the candles, oldest first.
+     */
+    public synchronized Candles read(String productId, int granularity, long from, long to)
+            throws IOException {
+        Series s = series(productId, granularity);
+        long first = s.ceilSlot(from);
+        long last = Math.max(first, s.ceilSlot(to));
+
+        Candles candles = new Candles((int) Math.min(SEGMENT_SLOTS, last - first));
+        DoubleBuffer[] columns = new DoubleBuffer[Candles.COLUMNS];
+        long slot = first;
+        while (slot < last) {
+            int start = offset(slot) / Double.BYTES;
+            int end = (int) Math.min(SEGMENT_SLOTS, start + last - slot);
+            if (s.hasSegment(slot)) {
+                for (int column = 0; column < Candles.COLUMNS; column++) {
+                    columns[column] = s.segment(column, slot).asDoubleBuffer();
+                }
+                // Straight from the mapping; slots without a trade are 0.
+                DoubleBuffer times = columns[Candles.TIME];
+                for (int i = start; i < end; i++) {
+                    double time = times.get(i);
+                    if (time != 0) {
+                        candles.add(time, columns[Candles.LOW].get(i),
+                                columns[Candles.HIGH].get(i), columns[Candles.OPEN].get(i),
+                                columns[Candles.CLOSE].get(i), columns[Candles.VOLUME].get(i));
+                    }
+                }
+            }
+            slot += end - start;
+        }
+        return candles;
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot % SEGMENT_SLOTS) * Double.BYTES;
+    }
+
+    /**
+     * Closes every file. The store can't be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        IOException failure = null;
+        for (Series s : series.values()) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        series.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Series series(String productId, int granularity) throws IOException {
+        if (closed) {
+            throw new IOException("Candle store is closed");
+        }
+        if (granularity <= 0 || ORIGIN_SECONDS % granularity != 0) {
+            throw new IllegalArgumentException("Slots of " + granularity
+                    + "s wouldn't line up with the API's candles");
+        }
+        String key = productId + '/' + granularity;
+        Series s = series.get(key);
+        if (s == null) {
+            s = new Series(directory.resolve(productId).resolve(Integer.toString(granularity)),
+                    granularity);
+            series.put(key, s);
+        }
+        return s;
+    }
+
+    /**
+     * The files of one product at one granularity.
+     */
+    private static class Series {
+        private final Path directory;
+        private final int granularity;
+        private final FileChannel[] files = new FileChannel[Candles.COLUMNS];
+        // Mapped lazily, indexed by column then segment.
+        private final List<List<MappedByteBuffer>> segments =
+                new ArrayList<List<MappedByteBuffer>>();
+        // Segments written to since the last force(); MappedByteBuffer's
+        // equals() compares contents, so these are kept by identity.
+        private final Set<MappedByteBuffer> dirty = Collections.newSetFromMap(
+                new IdentityHashMap<MappedByteBuffer, Boolean>());
+        // Sorted, non-overlapping [first, last) slot ranges.
+        private final List<long[]> coverage = new ArrayList<long[]>();
+
+        Series(Path directory, int granularity) throws IOException {
+            this.directory = directory;
+            this.granularity = granularity;
+            Files.createDirectories(directory);
+            for (int column = 0; column < Candles.COLUMNS; column++) {
+                files[column] = FileChannel.open(directory.resolve(COLUMN_NAMES[column]),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                segments.add(new ArrayList<MappedByteBuffer>());
+            }
+            readCoverage();
+        }
+
+        long slot(long time) {
+            return time < ORIGIN_SECONDS ? -1 : (time - ORIGIN_SECONDS) / granularity;
+        }
+
+        // The first slot starting at or after the time, which is also one
+        // past the last slot starting before it.
+        long ceilSlot(long time) {
+            return Math.max(0, (time - ORIGIN_SECONDS + granularity - 1) / granularity);
+        }
+
+        long time(long slot) {
+            return ORIGIN_SECONDS + slot * granularity;
+        }
+
+        boolean hasSegment(long slot) throws IOException {
+            return files[Candles.TIME].size() > (slot / SEGMENT_SLOTS) * SEGMENT_BYTES;
+        }
+
+        MappedByteBuffer segment(int column, long slot) throws IOException {
+            List<MappedByteBuffer> mapped = segments.get(column);
+            int index = (int) (slot / SEGMENT_SLOTS);
+            while (mapped.size() <= index) {
+                mapped.add(null);
+            }
+            MappedByteBuffer segment = mapped.get(index);
+            if (segment == null) {
+                // Mapping past the end grows the file; the gap stays sparse.
+                segment = files[column].map(FileChannel.MapMode.READ_WRITE,
+                        (long) index * SEGMENT_BYTES, SEGMENT_BYTES);
+                mapped.set(index, segment);
+            }
+            return segment;
+        }
+
+        /**
+         * @return the segment, which force() will write out.
+         */
+        MappedByteBuffer written(int column, long slot) throws IOException {
+            MappedByteBuffer segment = segment(column, slot);
+            dirty.add(segment);
+            return segment;
+        }
+
+        void force() {
+            for (MappedByteBuffer segment : dirty) {
+                segment.force();
+            }
+            dirty.clear();
+        }
+
+        void close() throws IOException {
+            force();
+            segments.clear();
+            for (FileChannel file : files) {
+                file.close();
+            }
+        }
+
+        void cover(long first, long last) throws IOException {
+            coverage.add(new long[] { first, last });
+            coverage.sort((a, b) -> Long.compare(a[0], b[0]));
+            // Merge touching and overlapping ranges.
+            int merged = 0;
+            for (long[] range : coverage) {
+                if (merged > 0 && range[0] <= coverage.get(merged - 1)[1]) {
+                    long[] previous = coverage.get(merged - 1);
+                    previous[1] = Math.max(previous[1], range[1]);
+                } else {
+                    coverage.set(merged++, range);
+                }
+            }
+            coverage.subList(merged, coverage.size()).clear();
+            writeCoverage();
+        }
+
+        private void readCoverage() throws IOException {
+            Path file = directory.resolve("coverage");
+            if (!Files.exists(file)) {
+                return;
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                DataInputStream data = new DataInputStream(in);
+                int count = data.readInt();
+                for (int i = 0; i < count; i++) {
+                    coverage.add(new long[] { data.readLong(), data.readLong() });
+                }
+            }
+        }
+
+        private void writeCoverage() throws IOException {
+            // Replace the file in one step so a crash leaves the old one.
+            Path temp = directory.resolve("coverage.tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(coverage.size());
+                for (long[] range : coverage) {
+                    data.writeLong(range[0]);
+                    data.writeLong(range[1]);
+                }
+                data.flush();
+            }
+            Files.move(temp, directory.resolve("coverage"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package coinbase;
+
+import java.util.Arrays;
+
+/**
+ * A growable run of candles stored column by column: one primitive array for
+ * each of time, low, high, open, close and volume. <br/>
+ * <br/>
+ * The columns are in the same order as a candle row from the API, and as
+ * indexed by Historian.History, so toRows() gives the double[][] that the
+ * agents read.
+ */
+public class Candles {
+
+    public static final int TIME = 0;
+    public static final int LOW = 1;
+    public static final int HIGH = 2;
+    public static final int OPEN = 3;
+    public static final int CLOSE = 4;
+    public static final int VOLUME = 5;
+
+    public static final int COLUMNS = 6;
+
+    private final double[][] columns = new double[COLUMNS][];
+    private int size;
+
+    public Candles() {
+        this(256);
+    }
+
+    public Candles(int capacity) {
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = new double[Math.max(1, capacity)];
+        }
+    }
+
+    /**
+     * Copies API style rows of { time, low, high, open, close, volume }.
+     */
+    public static Candles fromRows(double[][] rows) {
+        Candles candles = new Candles(rows.length);
+        for (double[] row : rows) {
+            candles.add(row[TIME], row[LOW], row[HIGH], row[OPEN], row[CLOSE], row[VOLUME]);
+        }
+        return candles;
+    }
+
+    public void add(double time, double low, double high, double open, double close,
+            double volume) {
+        if (size == columns[TIME].length) {
+            ensureCapacity(size * 2);
+        }
+        columns[TIME][size] = time;
+        columns[LOW][size] = low;
+        columns[HIGH][size] = high;
+        columns[OPEN][size] = open;
+        columns[CLOSE][size] = close;
+        columns[VOLUME][size] = volume;
+        size++;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > columns[TIME].length) {
+            for (int i = 0; i < COLUMNS; i++) {
+                columns[i] = Arrays.copyOf(columns[i], capacity);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public double get(int row, int column) {
+        return columns[column][row];
+    }
+
+    /**
+     * @return the column's backing array. Only the first size() values are
+     *         candles.
+     */
+    public double[] column(int column) {
+        return columns[column];
+    }
+
+    /**
+     * Sets the number of candles after the columns have been filled directly.
+     */
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return a row of { time, low, high, open, close, volume } per candle.
+     */
+    public double[][] toRows() {
+        double[][] rows = new double[size][COLUMNS];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < COLUMNS; j++) {
+                rows[i][j] = columns[j][i];
+            }
+        }
+        return rows;
+    }
+}
@@ -17,8 +17,19 @@ public class Coinbase {
     public final static String MATCH = "match";
     public final static String ERROR = "error";
     public final static String RECEIVED = "received";
+    public final static String OPEN = "open";
+    public final static String DONE = "done";
+    public final static String CHANGE = "change";
     public static final String SUBSCRIBE = "subscribe";
+    public static final String HEARTBEAT = "heartbeat";
     public static final String BITCOIN_USD = "BTC-USD";
+    public static final String BITCOIN_EUR = "BTC-EUR";
+    public static final String BITCOIN_GBP = "BTC-GBP";
+    public static final String BITCOIN_CAD = "BTC-CAD";
+
+    // Every product the exchange trades.
+    public static final String[] PRODUCTS = { BITCOIN_USD, BITCOIN_EUR, BITCOIN_GBP,
+            BITCOIN_CAD };
 
     // Coinabse API Message sides.
     public final static String BUY = "buy";
@@ -31,6 +42,21 @@ public class Coinbase {
     public final static String MESSAGE = "message";
     public final static String PRICE = "price";
     public final static String SIDE = "side";
-    
-    // 
+    public final static String SIZE = "size";
+    public final static String TIME = "time";
+    public final static String REMAINING_SIZE = "remaining_size";
+    public final static String REASON = "reason";
+    public final static String NEW_SIZE = "new_size";
+    public final static String ORDER_ID = "order_id";
+    public final static String MAKER_ORDER_ID = "maker_order_id";
+    public final static String TAKER_ORDER_ID = "taker_order_id";
+    public final static String ON = "on";
+
+    // Coinbase API Orderbook keys.
+    public final static String BIDS = "bids";
+    public final static String ASKS = "asks";
+
+    // Coinbase API Done reasons.
+    public final static String FILLED = "filled";
+    public final static String CANCELED = "canceled";
 }
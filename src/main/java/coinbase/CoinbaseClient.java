@@ -1,19 +1,30 @@
 package coinbase;
 
+import java.io.IOException;
 import java.net.URI;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
-import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class CoinbaseClient {
@@ -21,66 +32,719 @@ public class CoinbaseClient {
     // This client creates a socketed session between the coinbase server and
     // us.
     private WebSocketClient socketClient;
-    // The socket lets us maintain a virtual session.
-    private Session session;
+    // The socket lets us maintain a virtual session. Set on Jetty's thread
+    // once the socket has connected.
+    private volatile Session session;
+
+    // Default time allowed for the socket to connect, TLS handshake and all.
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    private long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    // Times out connection attempts of every client.
+    private static final ScheduledExecutorService CONNECT_TIMER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CoinbaseClient-connect");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // All the adapters that want to be updated when changes happen to the
+    // coinbase client. Safe to change from any thread while the socket is
+    // running.
+    private final ListenerRegistry listeners = new ListenerRegistry();
+
+    // One shard per subscribed product, holding that product's market
+    // listeners. The first is the default product.
+    private final ProductShard[] shards;
+
+    // Parses the raw messages for the market listeners.
+    private final FeedDecoder decoder = new FeedDecoder();
+
+    // Reused for every message, see MarketEvent.
+    private final MarketEvent event = new MarketEvent();
+
+    // Published over JMX while the socket is open.
+    private final FeedMetrics metrics = new FeedMetrics(this);
+    private ObjectName metricsName;
+    private static final AtomicInteger CLIENTS = new AtomicInteger();
+    private final int clientNumber = CLIENTS.incrementAndGet();
+
+    // Shared by every REST call so that connections are reused.
+    private static RestClient rest = new RestClient();
+
+    // The exchange limits public requests to 3 a second per address, so every
+    // backfill shares one limit.
+    private static final RateLimiter REST_RATE_LIMIT = new RateLimiter(3, 6);
 
-    // A list of all the adapters that want to be updated when changes happen to
-    // the coinbase client.
-    private ArrayList<WebSocketAdapter> listeners = new ArrayList<>();
+    // When set, historical data is read from disk where possible.
+    private static CandleStore candleStore;
+    private static CandlePyramid candlePyramid;
 
-    public CoinbaseClient() {
+    // When set, every message received is recorded.
+    private volatile Journal journal;
+
+    // When set, listeners added from then on get Mailboxes. See
+    // setListenerIsolation().
+    private volatile OverflowPolicy isolationPolicy;
+    private volatile int isolationCapacity;
+    private volatile boolean isolationVirtualThreads;
+    // The stand-ins of isolated listeners, by listener.
+    private final ConcurrentHashMap<Object, Object> isolated =
+            new ConcurrentHashMap<Object, Object>();
+
+    /*
+     * Managed connection mode. See openManagedWebSocket().
+     */
+
+    // Default time without any message before we consider the socket dead.
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+
+    private volatile boolean managed;
+    // Set while closeSocket() is running, so the close isn't mistaken for a
+    // dropped connection.
+    private volatile boolean closing;
+    private URI uri;
+    // Runs the idle watchdog and the reconnect attempts. Guarded by this:
+    // closeSocket() shuts it down and clears it, so it is only ever used
+    // under the lock.
+    private ScheduledExecutorService scheduler;
+    private Backoff backoff = new Backoff(250, 30000);
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    // Only one reconnect may be waiting at a time.
+    private final AtomicBoolean reconnectPending = new AtomicBoolean();
+    private final AtomicLong reconnects = new AtomicLong();
+    // When the socket last gave us anything.
+    private volatile long lastMessageNanos;
+    // The listener of the current session. Callbacks from older sessions are
+    // ignored when deciding whether to reconnect.
+    private volatile SocketListener currentListener;
+    // Returned by openManagedWebSocket().
+    private volatile CompletableFuture<Session> firstConnection;
+
+    /**
+     * Creates a client which calls every listener directly on the socket's
+     * thread.
+     *
+     * @param productIds
+     *            the products to subscribe to, such as Coinbase.BITCOIN_USD.
+     *            Defaults to Coinbase.BITCOIN_USD alone.
+     */
+    public CoinbaseClient(String... productIds) {
+        this(0, null, productIds);
+    }
+
+    /**
+     * Creates a client which dispatches market events through ring buffers, one
+     * per product, so that each MarketListener runs on its own thread and a
+     * slow listener can't stall reads from the socket. Raw WebSocketAdapters,
+     * and the connect/close/error callbacks, are still called on the socket
+     * thread.
+     *
+     * @param ringSize
+     *            the number of events each ring holds. Must be a power of two.
+     * @param waitStrategy
+     *            how the listener threads wait for new events.
+     * @param productIds
+     *            the products to subscribe to, such as Coinbase.BITCOIN_USD.
+     *            Defaults to Coinbase.BITCOIN_USD alone.
+     */
+    public CoinbaseClient(int ringSize, WaitStrategy waitStrategy, String... productIds) {
+        if (productIds.length == 0) {
+            productIds = new String[] { Coinbase.BITCOIN_USD };
+        }
+        shards = new ProductShard[productIds.length];
+        for (int i = 0; i < shards.length; i++) {
+            RingBuffer ring = waitStrategy == null ? null : new RingBuffer(ringSize,
+                    waitStrategy);
+            shards[i] = new ProductShard(productIds[i], ring);
+        }
         // Currently: Low Security
         SslContextFactory sslContextFactory1 = new SslContextFactory(true);
         // Create the Socket client.
         socketClient = new WebSocketClient(sslContextFactory1);
+        // Receive text as bytes rather than Strings.
+        FrameDriver.install(socketClient);
+    }
+
+    /**
+     * @return the products this client subscribes to.
+     */
+    public String[] getProductIds() {
+        String[] productIds = new String[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            productIds[i] = shards[i].getProductId();
+        }
+        return productIds;
     }
 
+    /**
+     * Adds a listener which is handed the raw message text of every product.
+     * Prefer addListener(MarketListener), which avoids parsing each message
+     * once per listener. May be called from any thread.
+     */
     public void addListener(WebSocketAdapter listener) {
-        this.listeners.add(listener);
+        OverflowPolicy policy = isolationPolicy;
+        if (policy == null) {
+            listeners.add(listener);
+            return;
+        }
+        Mailbox<String> mailbox = Mailbox.of(listener, isolationCapacity, policy);
+        Mailbox.IsolatedAdapter standIn = new Mailbox.IsolatedAdapter(listener, mailbox);
+        if (isolated.putIfAbsent(listener, standIn) == null) {
+            mailbox.start(isolationVirtualThreads);
+            listeners.add(standIn);
+        }
+    }
+
+    /**
+     * Stops the adapter from receiving messages. May be called from any
+     * thread, but a message that is already being dispatched may still reach
+     * it.
+     *
+     * @return false if the adapter was never added.
+     */
+    public boolean removeListener(WebSocketAdapter listener) {
+        Object standIn = isolated.remove(listener);
+        if (standIn instanceof Mailbox.IsolatedAdapter) {
+            listeners.remove((WebSocketAdapter) standIn);
+            ((Mailbox.IsolatedAdapter) standIn).mailbox.stop();
+            return true;
+        }
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener which is handed each of the default product's messages as
+     * a decoded MarketEvent. May be called from any thread; the listener's
+     * first event is the first message received after it was added.
+     */
+    public void addListener(MarketListener listener) {
+        add(shards[0], listener);
+    }
+
+    /**
+     * Adds a listener which is handed each of the given product's messages as a
+     * decoded MarketEvent. A listener only ever sees one product, so it never
+     * needs to guard its state against another product's thread.
+     *
+     * @param productId
+     *            one of the products this client subscribes to.
+     */
+    public void addListener(String productId, MarketListener listener) {
+        add(getShard(productId), listener);
+    }
+
+    private void add(ProductShard shard, MarketListener listener) {
+        OverflowPolicy policy = isolationPolicy;
+        if (policy == null) {
+            shard.add(listener);
+            return;
+        }
+        Mailbox<MarketEvent> mailbox = Mailbox.of(listener, isolationCapacity, policy);
+        Mailbox.IsolatedListener standIn = new Mailbox.IsolatedListener(listener, mailbox);
+        if (isolated.putIfAbsent(listener, standIn) == null) {
+            mailbox.start(isolationVirtualThreads);
+            shard.add(standIn);
+        }
+    }
+
+    /**
+     * Gives every listener added from now on, market listeners and raw
+     * adapters alike, a Mailbox: its own bounded queue and worker thread, so
+     * that one slow, blocked or failing listener can't hold up the socket or
+     * the others. Listeners already added are unaffected.
+     *
+     * @param policy
+     *            what to do when a listener's mailbox is full, or null to stop
+     *            isolating listeners added later.
+     * @param capacity
+     *            how many messages each mailbox holds.
+     * @param virtualThreads
+     *            run the workers on virtual threads when the JDK has them (21
+     *            and later).
+     */
+    public void setListenerIsolation(OverflowPolicy policy, int capacity,
+            boolean virtualThreads) {
+        if (policy != null && capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        isolationCapacity = capacity;
+        isolationVirtualThreads = virtualThreads;
+        isolationPolicy = policy;
+    }
+
+    /**
+     * @return the isolated listener's mailbox, with its queue depth, lag and
+     *         drop counts, or null if the listener isn't isolated.
+     */
+    public Mailbox<?> getMailbox(Object listener) {
+        Object standIn = isolated.get(listener);
+        if (standIn instanceof Mailbox.IsolatedListener) {
+            return ((Mailbox.IsolatedListener) standIn).mailbox;
+        } else if (standIn instanceof Mailbox.IsolatedAdapter) {
+            return ((Mailbox.IsolatedAdapter) standIn).mailbox;
+        }
+        return null;
+    }
+
+    /**
+     * Stops the listener from receiving events. May be called from any thread.
+     * When listeners have their own threads, this waits for the listener to
+     * finish the event it is handling, so no callback starts after it returns.
+     *
+     * @return false if the listener was never added.
+     */
+    public boolean removeListener(MarketListener listener) {
+        Object standIn = isolated.remove(listener);
+        if (standIn instanceof Mailbox.IsolatedListener) {
+            for (ProductShard shard : shards) {
+                shard.remove((MarketListener) standIn);
+            }
+            ((Mailbox.IsolatedListener) standIn).mailbox.stop();
+            return true;
+        }
+        for (ProductShard shard : shards) {
+            if (shard.remove(listener)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    void removeListener(WebSocketAdapter listener) {
-        for (WebSocketAdapter socketListener : listeners) {
-            if (socketListener == listener) {
-                listeners.remove(socketListener);
-                break;
+    /**
+     * @return how many events the listener is behind the socket: waiting in
+     *         its mailbox if it is isolated, or in its ring. Always 0 when
+     *         listeners are called directly.
+     */
+    public long getLag(MarketListener listener) {
+        Mailbox<?> mailbox = getMailbox(listener);
+        if (mailbox != null) {
+            return mailbox.getQueueDepth();
+        }
+        for (ProductShard shard : shards) {
+            EventProcessor processor = shard.getProcessor(listener);
+            if (processor != null) {
+                return shard.getLag(processor);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the largest number of events the listener has been behind the
+     *         socket. Always 0 when listeners are called directly.
+     */
+    public long getMaxLag(MarketListener listener) {
+        Mailbox<?> mailbox = getMailbox(listener);
+        if (mailbox != null) {
+            return mailbox.getMaxQueueDepth();
+        }
+        for (ProductShard shard : shards) {
+            EventProcessor processor = shard.getProcessor(listener);
+            if (processor != null) {
+                return processor.getMaxLag();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the guard that detects skipped messages for the default product,
+     *         along with its gap and resync counters.
+     */
+    public SequenceGuard getSequenceGuard() {
+        return shards[0].getGuard();
+    }
+
+    /**
+     * @return the guard that detects skipped messages for the given product.
+     */
+    public SequenceGuard getSequenceGuard(String productId) {
+        return getShard(productId).getGuard();
+    }
+
+    /**
+     * Fetches a fresh orderbook snapshot for every product and hands it to the
+     * market listeners as a SNAPSHOT event, followed by every message received
+     * since. Call this after opening the socket to seed OrderBooks.
+     */
+    public void resync() {
+        for (ProductShard shard : shards) {
+            shard.getGuard().requestResync();
+        }
+    }
+
+    /**
+     * Like resync(), but for one product.
+     */
+    public void resync(String productId) {
+        getShard(productId).getGuard().requestResync();
+    }
+
+    private ProductShard getShard(String productId) {
+        for (ProductShard shard : shards) {
+            if (shard.getProductId().equals(productId)) {
+                return shard;
+            }
+        }
+        throw new IllegalArgumentException("Not subscribed to " + productId);
+    }
+
+    /**
+     * @return the shard for a decoded message's product, or null if we are not
+     *         subscribed to it.
+     */
+    private ProductShard routeShard(String productId) {
+        // The decoder hands us the same String for a product every time, so
+        // this is nearly always an identity match.
+        for (ProductShard shard : shards) {
+            if (shard.getProductId() == productId) {
+                return shard;
             }
         }
+        for (ProductShard shard : shards) {
+            if (shard.getProductId().equals(productId)) {
+                return shard;
+            }
+        }
+        return null;
     }
 
+    /**
+     * Opens the socket and subscribes to every product, waiting up to the
+     * connect timeout for it to connect.
+     */
     public void openWebSocket(URI uri) throws Exception {
+        connect(uri, connectTimeoutMillis, TimeUnit.MILLISECONDS).get();
+    }
 
-        // Prepare the Client
-        socketClient.start();
+    /**
+     * Opens the socket without waiting for it. <br/>
+     * <br/>
+     * The subscribe messages are sent the moment the socket connects, on
+     * Jetty's thread, before the future completes, so nothing waits on the
+     * TLS handshake but whatever is chained onto the future. Clients connect
+     * in parallel when each is started this way; see connectAll().
+     *
+     * @return completes with the session once connected and subscribed, or
+     *         exceptionally if connecting fails or takes longer than the
+     *         timeout (with a TimeoutException), in which case the attempt
+     *         is abandoned.
+     */
+    public CompletableFuture<Session> connect(URI uri, long timeout, TimeUnit unit) {
+        SocketListener listener = new SocketListener();
+        currentListener = listener;
+        CompletableFuture<Session> connected = listener.connected;
 
-        SocketListener mainListener = new SocketListener();
+        // Starting the client (and JMX) can take a while the first time, so
+        // that is done off the caller's thread too.
+        CompletableFuture.runAsync(() -> {
+            try {
+                registerMetrics();
 
-        // Trys to connect.
-        // "Future" here means that we expect the client to return to us
-        // a session sometime in the near future, but as of now, it is null.
-        Future<Session> fSession = socketClient.connect(mainListener, uri);
+                // Prepare the Client
+                socketClient.start();
 
-        // Wait for the socket to return us a session.
-        session = fSession.get();
+                // The listener completes connected when Jetty tells it the
+                // session is open, or fails it on an error.
+                listener.pending = socketClient.connect(listener, uri);
+            } catch (Exception e) {
+                connected.completeExceptionally(e);
+            }
+        });
 
-        // Construct the subscribe message as defined in the API.
-        JSONObject json = new JSONObject();
-        json.put(Coinbase.TYPE, Coinbase.SUBSCRIBE);
-        json.put(Coinbase.PRODUCT_ID, Coinbase.BITCOIN_USD);
+        Future<?> timer = CONNECT_TIMER.schedule(() -> {
+            if (connected.completeExceptionally(new TimeoutException("Not connected to " + uri
+                    + " after " + unit.toMillis(timeout) + "ms"))) {
+                Future<Session> pending = listener.pending;
+                if (pending != null) {
+                    pending.cancel(true);
+                }
+            }
+        }, timeout, unit);
+        connected.whenComplete((connection, error) -> timer.cancel(false));
+        return connected;
+    }
 
-        // Send the subscribe message to the server.
-        session.getRemote().sendString(json.toString());
+    /**
+     * Connects several clients at once, e.g. one per group of products.
+     *
+     * @return completes once every client is connected and subscribed, or
+     *         exceptionally as soon as any of them fails.
+     */
+    public static CompletableFuture<Void> connectAll(URI uri, long timeout, TimeUnit unit,
+            CoinbaseClient... clients) {
+        CompletableFuture<?>[] connections = new CompletableFuture<?>[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            connections[i] = clients[i].connect(uri, timeout, unit);
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(connections);
+        for (CompletableFuture<?> connection : connections) {
+            connection.whenComplete((connected, error) -> {
+                if (error != null) {
+                    all.completeExceptionally(error);
+                }
+            });
+        }
+        return all;
+    }
 
+    /**
+     * Sends the subscribe messages without waiting for them to go out.
+     */
+    private void subscribe(Session session) {
+        // Subscribe to every product on the one socket.
+        for (ProductShard shard : shards) {
+            // Construct the subscribe message as defined in the API.
+            JSONObject json = new JSONObject();
+            json.put(Coinbase.TYPE, Coinbase.SUBSCRIBE);
+            json.put(Coinbase.PRODUCT_ID, shard.getProductId());
+
+            // Send the subscribe message to the server.
+            session.getRemote().sendStringByFuture(json.toString());
+        }
+
+        if (managed) {
+            // Ask for heartbeats so that even a quiet product proves the
+            // socket is alive.
+            JSONObject json = new JSONObject();
+            json.put(Coinbase.TYPE, Coinbase.HEARTBEAT);
+            json.put(Coinbase.ON, true);
+            session.getRemote().sendStringByFuture(json.toString());
+        }
+    }
+
+    /**
+     * Sets how long openWebSocket() and each managed connection attempt wait
+     * for the socket to connect.
+     */
+    public void setConnectTimeout(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Sets whether every product's SequenceGuard resyncs from a snapshot when
+     * it sees a gap. See SequenceGuard.setResyncOnGap().
+     */
+    public void setResyncOnGap(boolean resyncOnGap) {
+        for (ProductShard shard : shards) {
+            shard.getGuard().setResyncOnGap(resyncOnGap);
+        }
+    }
+
+    /**
+     * Records every message received from now on, as it is received. Pass
+     * null to stop recording. The client doesn't close the journal.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
     }
 
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Opens the socket and keeps it open. <br/>
+     * <br/>
+     * If the socket closes or errors, or nothing (not even a heartbeat) arrives
+     * for the idle timeout, the client reconnects with exponential backoff and
+     * resubscribes to every product. Listeners stay registered throughout, so
+     * agents keep their windows. Messages missed while disconnected show up as
+     * a sequence gap on the first message after reconnecting, and the
+     * SequenceGuard resyncs from a snapshot. <br/>
+     * <br/>
+     * Unlike openWebSocket(), this returns at once, and doesn't throw even if
+     * the first connection attempt fails; it keeps retrying in the background
+     * until closeSocket() is called.
+     *
+     * @return completes with the first session that connects.
+     */
+    public CompletableFuture<Session> openManagedWebSocket(URI uri) {
+        CompletableFuture<Session> first;
+        synchronized (this) {
+            first = firstConnection = new CompletableFuture<Session>();
+            this.uri = uri;
+            managed = true;
+            closing = false;
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "CoinbaseClient-reconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long period = Math.max(1, idleTimeoutMillis / 2);
+                scheduler.scheduleAtFixedRate(this::checkIdle, period, period,
+                        TimeUnit.MILLISECONDS);
+            }
+            lastMessageNanos = System.nanoTime();
+            reconnectPending.set(true);
+            scheduler.execute(this::reconnect);
+        }
+        return first;
+    }
+
+    /**
+     * Sets how long the managed socket may go without any message before it
+     * is considered dead and reconnected. Must be called before
+     * openManagedWebSocket().
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the delays between reconnect attempts. Must be called before
+     * openManagedWebSocket().
+     */
+    public void setReconnectBackoff(long initialMillis, long maxMillis) {
+        this.backoff = new Backoff(initialMillis, maxMillis);
+    }
+
+    /**
+     * @return how many times the managed socket has reconnected.
+     */
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    /**
+     * Runs on the scheduler: closes a socket that has gone quiet, which in
+     * turn schedules a reconnect.
+     */
+    private void checkIdle() {
+        if (!managed || closing || reconnectPending.get()) {
+            return;
+        }
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastMessageNanos);
+        if (idleMillis > idleTimeoutMillis) {
+            System.err.println("No messages for " + idleMillis + "ms, reconnecting");
+            Session stale = session;
+            if (stale != null) {
+                stale.close();
+            }
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (!managed || closing || !reconnectPending.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = backoff.nextDelayMillis();
+        synchronized (this) {
+            if (scheduler == null) {
+                // Closed in the meantime.
+                return;
+            }
+            System.err.println("Reconnecting in " + delay + "ms");
+            scheduler.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs on the scheduler, but doesn't wait for the connection.
+     */
+    private void reconnect() {
+        if (closing) {
+            return;
+        }
+        Session stale = session;
+        if (stale != null && stale.isOpen()) {
+            stale.close();
+        }
+        connect(uri, connectTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete(
+                (connected, error) -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                        reconnectPending.set(false);
+                        scheduleReconnect();
+                        return;
+                    }
+                    lastMessageNanos = System.nanoTime();
+                    if (backoff.getFailures() > 0) {
+                        reconnects.incrementAndGet();
+                    }
+                    backoff.reset();
+                    reconnectPending.set(false);
+                    CompletableFuture<Session> first = firstConnection;
+                    if (first != null) {
+                        first.complete(connected);
+                    }
+                });
+    }
+
+    /**
+     * Closes the socket and, if it was managed, stops reconnecting. A later
+     * openWebSocket() opens a plain, unmanaged socket.
+     */
     public void closeSocket() throws Exception {
-        session.close();
+        closing = true;
+        synchronized (this) {
+            managed = false;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+        CompletableFuture<Session> first = firstConnection;
+        if (first != null) {
+            first.cancel(false);
+        }
+        Session current = session;
+        if (current != null) {
+            current.close();
+        }
         socketClient.stop();
+        synchronized (this) {
+            Metrics.unregister(metricsName);
+            metricsName = null;
+        }
+    }
+
+    private synchronized void registerMetrics() {
+        if (metricsName == null) {
+            metricsName = Metrics.register(Metrics.DOMAIN, "Feed", String.join(",",
+                    getProductIds()) + "-" + clientNumber, metrics);
+        }
+    }
+
+    /**
+     * @return the counters behind this client's Feed MBean.
+     */
+    public FeedMetrics getMetrics() {
+        return metrics;
+    }
+
+    ProductShard[] getShards() {
+        return shards;
+    }
+
+    /**
+     * Replaces the client used for every REST call, e.g. to allow more
+     * requests in flight at once. May be called while requests are in flight:
+     * the old client is stopped once they have all been answered.
+     */
+    public static void setRestClient(RestClient client) {
+        RestClient old;
+        synchronized (CoinbaseClient.class) {
+            old = rest;
+            rest = client;
+        }
+        old.stopWhenIdle();
+    }
+
+    /**
+     * @return the client used for every REST call.
+     */
+    public static synchronized RestClient getRestClient() {
+        return rest;
     }
 
     /**
      * Get market match data from startDate to endDate and with a frequency
-     * determined by granularity.
+     * determined by granularity. Long ranges are fetched a page at a time, see
+     * Backfill.
      *
      * @param startDate
      *            an ISO8601 time indicating the first data we are interested
@@ -89,46 +753,88 @@ public class CoinbaseClient {
      *            an ISO8601 time indicating the last data we are interested in.
      * @param granularity
      *            how often we want to sample the data (in seconds)
-     * @return A json formatted string containing the retrieved data.
+     * @return the candles, oldest first.
      */
     public static double[][] getHistoricalData(Date startDate, Date endDate, int granularity)
             throws Exception {
+        CandlePyramid pyramid = getCandlePyramid();
+        if (pyramid != null) {
+            // Served from the coarsest level that fits.
+            return pyramid.candles(Coinbase.BITCOIN_USD, startDate, endDate, granularity)
+                    .toRows();
+        }
+        CandleStore store = getCandleStore();
+        if (store != null) {
+            // Only download what we haven't got.
+            return store.load(Coinbase.BITCOIN_USD, granularity, startDate, endDate,
+                    newBackfill()).toRows();
+        }
+        return newBackfill().fetch(Coinbase.BITCOIN_USD, startDate, endDate, granularity)
+                .toRows();
+    }
 
-        // Low Security needed
-        SslContextFactory sslContextFactory2 = new SslContextFactory(true);
-        // Create the HTTP client
-        HttpClient httpClient = new HttpClient(sslContextFactory2);
+    /**
+     * Like getHistoricalData(), but doesn't wait for the response.
+     */
+    public static CompletableFuture<double[][]> getHistoricalDataAsync(Date startDate,
+            Date endDate, int granularity) {
+        if (getCandlePyramid() != null || getCandleStore() != null) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return getHistoricalData(startDate, endDate, granularity);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+        return newBackfill().fetchAsync(Coinbase.BITCOIN_USD, startDate, endDate, granularity)
+                .thenApply(Candles::toRows);
+    }
 
-        httpClient.start();
+    /**
+     * Keeps every candle fetched by getHistoricalData() in the store, so that
+     * later calls only download what is missing. Pass null to always download.
+     */
+    public static synchronized void setCandleStore(CandleStore store) {
+        candleStore = store;
+    }
+
+    public static synchronized CandleStore getCandleStore() {
+        return candleStore;
+    }
+
+    /**
+     * Serves getHistoricalData() from the pyramid's levels, which takes
+     * precedence over the candle store. Pass null to stop.
+     */
+    public static synchronized void setCandlePyramid(CandlePyramid pyramid) {
+        candlePyramid = pyramid;
+    }
+
+    public static synchronized CandlePyramid getCandlePyramid() {
+        return candlePyramid;
+    }
 
+    /**
+     * @return a Backfill sharing the REST client and the rate limit.
+     */
+    public static Backfill newBackfill() {
+        return new Backfill(getRestClient(), REST_RATE_LIMIT);
+    }
+
+    static String candlesUrl(String productId, long startSeconds, long endSeconds,
+            int granularity) {
         // ISO 8601 format.
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
 
         // Build the get request url.
         StringBuilder builder = new StringBuilder(Coinbase.COINBASE_API_ENDPOINT);
-        builder.append("/products/" + Coinbase.BITCOIN_USD + "/candles").append('?');
-        ;
-        builder.append("start=" + df.format(startDate)).append('&');
-        builder.append("end=" + df.format(endDate)).append('&');
+        builder.append("/products/" + productId + "/candles").append('?');
+        builder.append("start=" + df.format(new Date(startSeconds * 1000))).append('&');
+        builder.append("end=" + df.format(new Date(endSeconds * 1000))).append('&');
         builder.append("granularity=" + granularity);
-
-        // Issue a get request
-        ContentResponse res = httpClient.GET(builder.toString());
-
-        httpClient.stop();
-
-        String content = res.getContentAsString();
-
-        JSONArray data = new JSONArray(content);
-        // Six doubles returned for each bucket.
-        double[][] history = new double[data.length()][6];
-        for (int i = 0; i < history.length; i++) {
-            for (int j = 0; j < history[0].length; j++) {
-                history[i][j] = ((JSONArray) data.get(i)).getDouble(j);
-            }
-        }
-
-        return history;
+        return builder.toString();
     }
 
     /**
@@ -137,25 +843,134 @@ public class CoinbaseClient {
      * @return a json formatted String representing the retrieved data.
      */
     public static String getOrderbook(ResponseDetail level) throws Exception {
+        return getOrderbook(Coinbase.BITCOIN_USD, level);
+    }
 
-        // Low Security needed
-        SslContextFactory sslContextFactory = new SslContextFactory(true);
-        // Create the HTTP client
-        HttpClient httpClient = new HttpClient(sslContextFactory);
+    /**
+     * @param productId
+     *            the product whose orderbook we want.
+     * @param level
+     *            a ResponseDetail representing how much data you want back.
+     * @return a json formatted String representing the retrieved data.
+     */
+    public static String getOrderbook(String productId, ResponseDetail level) throws Exception {
+        return getRestClient().get(orderbookUrl(productId, level));
+    }
 
-        httpClient.start();
+    /**
+     * Like getOrderbook(), but doesn't wait for the response.
+     */
+    public static CompletableFuture<String> getOrderbookAsync(String productId,
+            ResponseDetail level) {
+        return getRestClient().getAsync(orderbookUrl(productId, level));
+    }
 
+    private static String orderbookUrl(String productId, ResponseDetail level) {
         // Build the get request using the Coinbase API.
         StringBuilder builder = new StringBuilder(Coinbase.COINBASE_API_ENDPOINT);
-        builder.append("/products/" + Coinbase.BITCOIN_USD + "/book").append('?');
-        builder.append("level=" + level.ordinal());
+        builder.append("/products/" + productId + "/book").append('?');
+        builder.append("level=" + level.getLevel());
+        return builder.toString();
+    }
 
-        // Issue a get request
-        ContentResponse res = httpClient.GET(builder.toString());
+    /**
+     * Fetches the full orderbook, ready to seed an OrderBook with.
+     */
+    public static BookSnapshot getOrderbookSnapshot() throws Exception {
+        return getOrderbookSnapshot(Coinbase.BITCOIN_USD);
+    }
 
-        httpClient.stop();
+    /**
+     * Fetches the given product's full orderbook, ready to seed an OrderBook
+     * with.
+     */
+    public static BookSnapshot getOrderbookSnapshot(String productId) throws Exception {
+        return BookSnapshot.parse(getOrderbook(productId, ResponseDetail.FULLORDER));
+    }
+
+    /**
+     * Hands a message to every listener, exactly as if the socket had just
+     * delivered it. Called on the socket thread, or by Replay. <br/>
+     * <br/>
+     * A String is only made for the raw WebSocketAdapters, and only if there
+     * are any; the market listeners are fed by decoding the characters in
+     * place.
+     */
+    void receive(CharSequence message) {
+        long receivedNanos = System.nanoTime();
+        metrics.messageReceived();
+        WebSocketAdapter[] adapters = listeners.get().adapters;
+        if (adapters.length > 0) {
+            String text = message.toString();
+            for (WebSocketAdapter listener : adapters) {
+                listener.onWebSocketText(text);
+            }
+        }
+
+        boolean wanted = false;
+        for (ProductShard shard : shards) {
+            wanted |= shard.hasListeners();
+        }
+        Journal journal = this.journal;
+        if (!wanted && journal == null) {
+            return;
+        }
+
+        // Parse the message once for all of the market listeners.
+        boolean decoded = true;
+        // Timed on its own, so raw listeners and the journal aren't counted as parsing.
+        long parseStart = System.nanoTime();
+        try {
+            decoder.decode(message, event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            metrics.parseError();
+            decoded = false;
+        }
+        long parsedNanos = System.nanoTime();
+
+        if (journal != null) {
+            // Even messages we couldn't parse, so they can be replayed.
+            try {
+                journal.append(decoded ? event.sequence : 0, message);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (!wanted || !decoded) {
+            return;
+        }
+        metrics.messageDecoded(event.type);
+        event.receivedNanos = receivedNanos;
+        event.routedNanos = System.nanoTime();
+        Latency.PARSE.record(parsedNanos - parseStart);
+        route(event);
+    }
+
+    /**
+     * Hands an already decoded event to its product's listeners. Used by
+     * Replay for tick files, which need no decoding; raw WebSocketAdapters
+     * never see these.
+     */
+    void receive(MarketEvent event) {
+        event.receivedNanos = event.routedNanos = System.nanoTime();
+        metrics.messageReceived();
+        metrics.messageDecoded(event.type);
+        route(event);
+    }
 
-        return res.getContentAsString();
+    private void route(MarketEvent event) {
+        if (event.productId == null) {
+            // Not about any one product, e.g. an error.
+            for (ProductShard shard : shards) {
+                shard.accept(event);
+            }
+        } else {
+            ProductShard shard = routeShard(event.productId);
+            if (shard != null) {
+                shard.accept(event);
+            }
+        }
     }
 
     /**
@@ -163,44 +978,73 @@ public class CoinbaseClient {
      * 1. Socket Opens 2. Text received 3. Socket closes 4. Socket error <br/>
      * <br/>
      * It then forwards the information it receives to all the listeners who
-     * have been added to the CoinbaseClient.
+     * have been added to the CoinbaseClient. Text arrives as the frame's bytes
+     * (see FrameDriver), so no String is made unless a raw WebSocketAdapter
+     * wants one.
      */
-    private class SocketListener extends WebSocketAdapter {
-
+    private class SocketListener implements FrameDriver.Endpoint {
 
+        // Completed once this listener's session is open and subscribed.
+        final CompletableFuture<Session> connected = new CompletableFuture<Session>();
+        // Jetty's side of the connection attempt.
+        volatile Future<Session> pending;
 
         @Override
-        public void onWebSocketConnect(Session connection) {
-            super.onWebSocketConnect(connection);
-            for (WebSocketAdapter listener : listeners) {
+        public void onConnect(Session connection) {
+            if (connected.isDone()) {
+                // Timed out while connecting; nobody is waiting for it.
+                connection.close();
+                return;
+            }
+            if (this == currentListener) {
+                session = connection;
+            }
+            subscribe(connection);
+            if (!connected.complete(connection)) {
+                connection.close();
+                return;
+            }
+            for (WebSocketAdapter listener : listeners.get().adapters) {
                 listener.onWebSocketConnect(connection);
             }
+            for (ProductShard shard : shards) {
+                shard.onConnect(connection);
+            }
         }
 
         @Override
-        public void onWebSocketText(String message) {
-            super.onWebSocketText(message);
-            for (WebSocketAdapter listener : listeners) {
-                listener.onWebSocketText(message);
-            }
+        public void onText(CharSequence message) {
+            lastMessageNanos = System.nanoTime();
+            receive(message);
         }
 
         @Override
-        public void onWebSocketClose(int statusCode, String reason) {
-            super.onWebSocketClose(statusCode, reason);
-            for (WebSocketAdapter listener : listeners) {
+        public void onClose(int statusCode, String reason) {
+            connected.completeExceptionally(new IOException("Closed while connecting: "
+                    + statusCode + " " + reason));
+            for (WebSocketAdapter listener : listeners.get().adapters) {
                 listener.onWebSocketClose(statusCode, reason);
             }
+            for (ProductShard shard : shards) {
+                shard.onClose(statusCode, reason);
+            }
+            if (this == currentListener) {
+                scheduleReconnect();
+            }
         }
 
-
-
         @Override
-        public void onWebSocketError(Throwable error) {
-            super.onWebSocketError(error);
-            for (WebSocketAdapter listener : listeners) {
+        public void onError(Throwable error) {
+            connected.completeExceptionally(error);
+            for (WebSocketAdapter listener : listeners.get().adapters) {
                 listener.onWebSocketError(error);
             }
+            for (ProductShard shard : shards) {
+                shard.onError(error);
+            }
+            if (this == currentListener) {
+                scheduleReconnect();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package coinbase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Consumes a RingBuffer on its own thread, handing each event to a single
+ * MarketListener. Events are processed in batches: the processor waits for
+ * the producer once, then runs through everything published so far before
+ * advancing its sequence.
+ */
+public class EventProcessor implements Runnable {
+
+    private final RingBuffer ring;
+    private final MarketListener listener;
+    // Null when nobody is counting.
+    private final ListenerMetrics metrics;
+    private final Sequence sequence = new Sequence();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    // The largest backlog this consumer has seen, in events.
+    private volatile long maxLag;
+
+    private Thread thread;
+
+    EventProcessor(RingBuffer ring, MarketListener listener, ListenerMetrics metrics) {
+        this.ring = ring;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    public MarketListener getListener() {
+        return listener;
+    }
+
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the largest number of events this consumer has been behind the
+     *         producer.
+     */
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    synchronized void start() {
+        running.set(true);
+        thread = new Thread(this, "EventProcessor-" + listener.getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the processor after the event it is working on, and waits for it
+     * to finish unless called from the processor's own thread.
+     */
+    void halt() {
+        Thread current;
+        synchronized (this) {
+            running.set(false);
+            current = thread;
+        }
+        ring.getWaitStrategy().signalAll();
+        if (current != null && current != Thread.currentThread()) {
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        WaitStrategy waitStrategy = ring.getWaitStrategy();
+        Sequence cursor = ring.getCursor();
+        long next = sequence.get() + 1;
+        while (running.get()) {
+            long available;
+            try {
+                available = waitStrategy.waitFor(next, cursor, running);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (available < next) {
+                continue;
+            }
+
+            long lag = available - next + 1;
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+
+            while (next <= available && running.get()) {
+                MarketEvent event = ring.get(next);
+                long start = System.nanoTime();
+                if (event.routedNanos != 0) {
+                    Latency.QUEUE.record(start - event.routedNanos);
+                }
+                try {
+                    listener.onMarketEvent(event);
+                    long nanos = System.nanoTime() - start;
+                    Latency.DISPATCH.record(nanos);
+                    if (metrics != null) {
+                        metrics.record(nanos);
+                    }
+                } catch (RuntimeException e) {
+                    // One bad event shouldn't stop the consumer.
+                    e.printStackTrace();
+                }
+                next++;
+            }
+            sequence.set(next - 1);
+        }
+    }
+}
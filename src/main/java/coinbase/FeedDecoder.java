@@ -0,0 +1,623 @@
+package coinbase;
+
+import org.json.JSONException;
+
+/**
+ * Turns raw websocket feed messages into MarketEvents. <br/>
+ * <br/>
+ * This is a purpose-built streaming parser for the feed's flat json schema.
+ * It walks the message once, recognizes the keys in Coinbase by comparing
+ * characters in place, and writes numbers straight into the primitive fields
+ * of the event. Known keys never produce an intermediate map, boxed value or
+ * String (order ids become pairs of longs), so decoding a message allocates
+ * nothing once product ids have been seen. Unknown keys are skipped. <br/>
+ * <br/>
+ * A decoder holds parsing state and must only be used by one thread.
+ */
+public class FeedDecoder {
+
+    // 10^0 through 10^22 are exactly representable as doubles.
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // Mantissas above this can not be converted to a double exactly.
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    // How many unexpected product ids we remember before we start allocating.
+    private static final int MAX_CACHED_PRODUCTS = 16;
+
+    // The message being decoded and our position in it.
+    private CharSequence in;
+    private int pos;
+    private int end;
+
+    // The bounds of the last string read by readString().
+    private int stringStart;
+    private int stringEnd;
+
+    // The halves of the last uuid read by readUuid().
+    private long uuidHigh;
+    private long uuidLow;
+
+    // Product ids that are not in Coinbase.PRODUCTS but have been seen.
+    private final String[] seenProducts = new String[MAX_CACHED_PRODUCTS];
+    private int seenProductCount;
+
+    /**
+     * Decodes a feed message into the given event, overwriting whatever it held
+     * before.
+     *
+     * @param message
+     *            the raw json text received from the socket.
+     * @param event
+     *            the event to fill in.
+     * @throws JSONException
+     *             if the message is not valid json.
+     */
+    public void decode(CharSequence message, MarketEvent event) throws JSONException {
+        decode(message, 0, message.length(), event);
+    }
+
+    /**
+     * Decodes the feed message found between start (inclusive) and end
+     * (exclusive) of the given characters.
+     */
+    public void decode(CharSequence message, int start, int end, MarketEvent event)
+            throws JSONException {
+        event.clear();
+
+        this.in = message;
+        this.pos = start;
+        this.end = end;
+
+        try {
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                return;
+            }
+            while (true) {
+                expect('"');
+                readString();
+                int keyStart = stringStart;
+                int keyEnd = stringEnd;
+                expect(':');
+                skipWhitespace();
+                readValue(keyStart, keyEnd, event);
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+                skipWhitespace();
+            }
+        } finally {
+            // Don't hold onto the message.
+            this.in = null;
+        }
+    }
+
+    /**
+     * Reads the value of the given key, storing it in the event if it is a key
+     * we know about.
+     */
+    private void readValue(int keyStart, int keyEnd, MarketEvent event) {
+        int keyLength = keyEnd - keyStart;
+        // Dispatch on length first so we compare as few characters as possible.
+        switch (keyLength) {
+        case 4:
+            if (keyEquals(keyStart, Coinbase.TYPE)) {
+                event.type = readType();
+                return;
+            }
+            if (keyEquals(keyStart, Coinbase.SIDE)) {
+                event.side = readSide();
+                return;
+            }
+            if (keyEquals(keyStart, Coinbase.SIZE)) {
+                event.size = readDouble();
+                return;
+            }
+            if (keyEquals(keyStart, Coinbase.TIME)) {
+                event.time = readTime();
+                return;
+            }
+            break;
+        case 5:
+            if (keyEquals(keyStart, Coinbase.PRICE)) {
+                event.price = readDouble();
+                return;
+            }
+            break;
+        case 6:
+            if (keyEquals(keyStart, Coinbase.REASON)) {
+                event.canceled = readStringEquals(Coinbase.CANCELED);
+                return;
+            }
+            break;
+        case 7:
+            if (keyEquals(keyStart, Coinbase.MESSAGE)) {
+                // Only errors carry a message, so allocating here is fine.
+                if (peek() == '"') {
+                    pos++;
+                    readString();
+                    event.message = in.subSequence(stringStart, stringEnd).toString();
+                    return;
+                }
+            }
+            break;
+        case 8:
+            if (keyEquals(keyStart, Coinbase.SEQUENCE)) {
+                event.sequence = readLong();
+                return;
+            }
+            if (keyEquals(keyStart, Coinbase.ORDER_ID)) {
+                readUuid();
+                event.orderIdHigh = uuidHigh;
+                event.orderIdLow = uuidLow;
+                return;
+            }
+            if (keyEquals(keyStart, Coinbase.NEW_SIZE)) {
+                event.remainingSize = readDouble();
+                return;
+            }
+            break;
+        case 10:
+            if (keyEquals(keyStart, Coinbase.PRODUCT_ID)) {
+                event.productId = readProduct();
+                return;
+            }
+            break;
+        case 14:
+            if (keyEquals(keyStart, Coinbase.REMAINING_SIZE)) {
+                event.remainingSize = readDouble();
+                return;
+            }
+            if (keyEquals(keyStart, Coinbase.MAKER_ORDER_ID)) {
+                readUuid();
+                event.makerOrderIdHigh = uuidHigh;
+                event.makerOrderIdLow = uuidLow;
+                return;
+            }
+            if (keyEquals(keyStart, Coinbase.TAKER_ORDER_ID)) {
+                readUuid();
+                event.takerOrderIdHigh = uuidHigh;
+                event.takerOrderIdLow = uuidLow;
+                return;
+            }
+            break;
+        default:
+            break;
+        }
+        skipValue();
+    }
+
+    private MarketEvent.Type readType() {
+        if (!readOptionalString()) {
+            return MarketEvent.Type.UNKNOWN;
+        }
+        if (stringEquals(Coinbase.MATCH)) {
+            return MarketEvent.Type.MATCH;
+        } else if (stringEquals(Coinbase.RECEIVED)) {
+            return MarketEvent.Type.RECEIVED;
+        } else if (stringEquals(Coinbase.OPEN)) {
+            return MarketEvent.Type.OPEN;
+        } else if (stringEquals(Coinbase.DONE)) {
+            return MarketEvent.Type.DONE;
+        } else if (stringEquals(Coinbase.CHANGE)) {
+            return MarketEvent.Type.CHANGE;
+        } else if (stringEquals(Coinbase.ERROR)) {
+            return MarketEvent.Type.ERROR;
+        }
+        return MarketEvent.Type.UNKNOWN;
+    }
+
+    private MarketEvent.Side readSide() {
+        if (!readOptionalString()) {
+            return MarketEvent.Side.NONE;
+        }
+        if (stringEquals(Coinbase.BUY)) {
+            return MarketEvent.Side.BUY;
+        } else if (stringEquals(Coinbase.SELL)) {
+            return MarketEvent.Side.SELL;
+        }
+        return MarketEvent.Side.NONE;
+    }
+
+    private boolean readStringEquals(String expected) {
+        return readOptionalString() && stringEquals(expected);
+    }
+
+    /**
+     * Reads a product id, reusing the constant String for products we know
+     * about.
+     */
+    private String readProduct() {
+        if (!readOptionalString()) {
+            return null;
+        }
+        for (String product : Coinbase.PRODUCTS) {
+            if (stringEquals(product)) {
+                return product;
+            }
+        }
+        for (int i = 0; i < seenProductCount; i++) {
+            if (stringEquals(seenProducts[i])) {
+                return seenProducts[i];
+            }
+        }
+        String product = in.subSequence(stringStart, stringEnd).toString();
+        if (seenProductCount < seenProducts.length) {
+            seenProducts[seenProductCount++] = product;
+        }
+        return product;
+    }
+
+    /**
+     * Reads a string value into stringStart and stringEnd.
+     *
+     * @return false if the value was null (or not a string), in which case it
+     *         has been skipped.
+     */
+    private boolean readOptionalString() {
+        if (peek() != '"') {
+            skipValue();
+            return false;
+        }
+        pos++;
+        readString();
+        return true;
+    }
+
+    /**
+     * Reads a uuid such as "ac928c66-ca53-498f-9c13-a110027a60e8" into uuidHigh
+     * and uuidLow, the same halves java.util.UUID would give. Anything that is
+     * not a uuid reads as 0.
+     */
+    private void readUuid() {
+        uuidHigh = 0;
+        uuidLow = 0;
+        if (!readOptionalString()) {
+            return;
+        }
+        int digits = 0;
+        for (int i = stringStart; i < stringEnd; i++) {
+            char c = in.charAt(i);
+            int value;
+            if (c >= '0' && c <= '9') {
+                value = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                value = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                value = c - 'A' + 10;
+            } else if (c == '-') {
+                continue;
+            } else {
+                break;
+            }
+            if (digits < 16) {
+                uuidHigh = (uuidHigh << 4) | value;
+            } else {
+                uuidLow = (uuidLow << 4) | value;
+            }
+            digits++;
+        }
+        if (digits != 32) {
+            uuidHigh = 0;
+            uuidLow = 0;
+        }
+    }
+
+    /**
+     * Reads a UTC time such as "2014-11-07T08:19:27.028459Z" as microseconds
+     * since the epoch. Anything that is not such a time reads as 0.
+     */
+    private long readTime() {
+        if (!readOptionalString()) {
+            return 0;
+        }
+        int i = stringStart;
+        if (stringEnd - i < 19 || in.charAt(i + 4) != '-' || in.charAt(i + 7) != '-'
+                || (in.charAt(i + 10) != 'T' && in.charAt(i + 10) != ' ')
+                || in.charAt(i + 13) != ':' || in.charAt(i + 16) != ':') {
+            return 0;
+        }
+        int year = readDigits(i, 4);
+        int month = readDigits(i + 5, 2);
+        int day = readDigits(i + 8, 2);
+        int hour = readDigits(i + 11, 2);
+        int minute = readDigits(i + 14, 2);
+        int second = readDigits(i + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || hour < 0 || minute < 0
+                || second < 0) {
+            return 0;
+        }
+        // Up to six fractional digits; any more are below a microsecond.
+        long micros = 0;
+        int scale = 0;
+        i += 19;
+        if (i < stringEnd && in.charAt(i) == '.') {
+            char c;
+            for (i++; i < stringEnd && (c = in.charAt(i)) >= '0' && c <= '9'; i++) {
+                if (scale < 6) {
+                    micros = micros * 10 + (c - '0');
+                    scale++;
+                }
+            }
+        }
+        for (; scale < 6; scale++) {
+            micros *= 10;
+        }
+        long days = daysSinceEpoch(year, month, day);
+        return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000000 + micros;
+    }
+
+    /**
+     * @return the number made of the count digits at start, or -1 if they
+     *         aren't all digits.
+     */
+    private int readDigits(int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = in.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return the days from 1970-01-01 to the given date of the proleptic
+     *         Gregorian calendar, without going through java.time.
+     */
+    static long daysSinceEpoch(int year, int month, int day) {
+        // Count years from March so the leap day comes last.
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Reads a number which Coinbase may send either bare or quoted. Null and
+     * empty values read as 0.
+     */
+    private double readDouble() {
+        boolean quoted = peek() == '"';
+        if (quoted) {
+            pos++;
+        } else if (peek() == 'n') {
+            skipValue();
+            return 0;
+        }
+        int start = pos;
+
+        boolean negative = false;
+        if (pos < end && in.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean exact = true;
+        char c;
+        // Integer part.
+        while (pos < end && (c = in.charAt(pos)) >= '0' && c <= '9') {
+            if (mantissa < MAX_EXACT_MANTISSA) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+            } else {
+                exact = false;
+            }
+            pos++;
+        }
+        // Fractional part.
+        if (pos < end && in.charAt(pos) == '.') {
+            pos++;
+            while (pos < end && (c = in.charAt(pos)) >= '0' && c <= '9') {
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    scale++;
+                } else if (c != '0') {
+                    exact = false;
+                }
+                pos++;
+            }
+        }
+        // Exponent.
+        if (pos < end && ((c = in.charAt(pos)) == 'e' || c == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && ((c = in.charAt(pos)) == '-' || c == '+')) {
+                negativeExponent = c == '-';
+                pos++;
+            }
+            int exponent = 0;
+            while (pos < end && (c = in.charAt(pos)) >= '0' && c <= '9') {
+                exponent = exponent * 10 + (c - '0');
+                pos++;
+            }
+            scale += negativeExponent ? exponent : -exponent;
+        }
+        int numberEnd = pos;
+        if (quoted) {
+            expect('"');
+        }
+
+        if (digits == 0) {
+            if (numberEnd == start) {
+                // "" is how Coinbase sends an absent price.
+                return 0;
+            }
+            throw error("Expected a number");
+        }
+
+        double value;
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && scale >= -22 && scale <= 22) {
+            // Both operands are exact, so the IEEE result is correctly
+            // rounded, which is what Double.parseDouble would give us.
+            value = scale >= 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa
+                    * POWERS_OF_TEN[-scale];
+        } else {
+            // Too many digits to do it exactly; let the JDK do it.
+            value = Double.parseDouble(in.subSequence(start, numberEnd).toString());
+            return value;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads an integer which Coinbase may send either bare or quoted.
+     */
+    private long readLong() {
+        boolean quoted = peek() == '"';
+        if (quoted) {
+            pos++;
+        } else if (peek() == 'n') {
+            skipValue();
+            return 0;
+        }
+        boolean negative = false;
+        if (pos < end && in.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        char c;
+        while (pos < end && (c = in.charAt(pos)) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            digits++;
+            pos++;
+        }
+        if (digits == 0) {
+            throw error("Expected an integer");
+        }
+        if (quoted) {
+            expect('"');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been consumed. Leaves
+     * the bounds of its raw contents in stringStart and stringEnd.
+     */
+    private void readString() {
+        stringStart = pos;
+        while (pos < end) {
+            char c = in.charAt(pos);
+            if (c == '"') {
+                stringEnd = pos;
+                pos++;
+                return;
+            } else if (c == '\\') {
+                // Skip the escaped character. Known values never contain
+                // escapes, so we never need to unescape them.
+                pos++;
+            }
+            pos++;
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Skips over any json value, including nested objects and arrays.
+     */
+    private void skipValue() {
+        int depth = 0;
+        do {
+            skipWhitespace();
+            char c = next();
+            switch (c) {
+            case '"':
+                readString();
+                break;
+            case '{':
+            case '[':
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                break;
+            case ',':
+            case ':':
+                if (depth == 0) {
+                    throw error("Unexpected '" + c + "'");
+                }
+                break;
+            default:
+                // A number, true, false or null.
+                while (pos < end) {
+                    c = in.charAt(pos);
+                    if (c == ',' || c == '}' || c == ']' || c <= ' ') {
+                        break;
+                    }
+                    pos++;
+                }
+                break;
+            }
+        } while (depth > 0);
+    }
+
+    private boolean keyEquals(int keyStart, String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (in.charAt(keyStart + i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean stringEquals(String expected) {
+        if (stringEnd - stringStart != expected.length()) {
+            return false;
+        }
+        return keyEquals(stringStart, expected);
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && in.charAt(pos) <= ' ') {
+            pos++;
+        }
+    }
+
+    private char peek() {
+        if (pos >= end) {
+            throw error("Unexpected end of message");
+        }
+        return in.charAt(pos);
+    }
+
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char expected) {
+        skipWhitespace();
+        if (next() != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    private JSONException error(String reason) {
+        return new JSONException(reason + " at character " + pos);
+    }
+}
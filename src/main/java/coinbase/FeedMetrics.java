@@ -0,0 +1,89 @@
+package coinbase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what one CoinbaseClient receives. The socket thread only ever
+ * increments striped counters; everything else is worked out when read.
+ * Published over JMX while the socket is open.
+ */
+public class FeedMetrics implements FeedMetricsMXBean {
+
+    private static final MarketEvent.Type[] TYPES = MarketEvent.Type.values();
+
+    private final CoinbaseClient client;
+    private final RateCounter messages = new RateCounter();
+    private final LongAdder[] messagesByType = new LongAdder[TYPES.length];
+    private final LongAdder parseErrors = new LongAdder();
+
+    FeedMetrics(CoinbaseClient client) {
+        this.client = client;
+        for (int i = 0; i < messagesByType.length; i++) {
+            messagesByType[i] = new LongAdder();
+        }
+    }
+
+    void messageReceived() {
+        messages.increment();
+    }
+
+    void messageDecoded(MarketEvent.Type type) {
+        messagesByType[type.ordinal()].increment();
+    }
+
+    void parseError() {
+        parseErrors.increment();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.get();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return messages.getRate();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesByType() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < TYPES.length; i++) {
+            counts.put(TYPES[i].name(), messagesByType[i].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return client.getReconnectCount();
+    }
+
+    @Override
+    public long getSequenceGaps() {
+        long gaps = 0;
+        for (ProductShard shard : client.getShards()) {
+            gaps += shard.getGuard().getGapCount();
+        }
+        return gaps;
+    }
+
+    @Override
+    public Map<String, Long> getQueueDepths() {
+        Map<String, Long> depths = new LinkedHashMap<String, Long>();
+        for (ProductShard shard : client.getShards()) {
+            for (ListenerMetrics metrics : shard.getListenerMetrics()) {
+                depths.put(shard.getProductId() + " " + metrics.getListener(),
+                        metrics.getQueueDepth());
+            }
+        }
+        return depths;
+    }
+}
@@ -0,0 +1,35 @@
+package coinbase;
+
+import java.util.Map;
+
+/**
+ * The health of one CoinbaseClient's feed, as seen over JMX. See FeedMetrics.
+ */
+public interface FeedMetricsMXBean {
+
+    long getMessages();
+
+    double getMessagesPerSecond();
+
+    /**
+     * @return how many messages of each type have been decoded.
+     */
+    Map<String, Long> getMessagesByType();
+
+    /**
+     * @return how many messages couldn't be decoded.
+     */
+    long getParseErrors();
+
+    long getReconnects();
+
+    /**
+     * @return how many sequence gaps have been seen, over every product.
+     */
+    long getSequenceGaps();
+
+    /**
+     * @return how many events each ring-mode listener is behind, by listener.
+     */
+    Map<String, Long> getQueueDepths();
+}
@@ -0,0 +1,182 @@
+package coinbase;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.eclipse.jetty.websocket.common.CloseInfo;
+import org.eclipse.jetty.websocket.common.events.AbstractEventDriver;
+import org.eclipse.jetty.websocket.common.events.EventDriver;
+import org.eclipse.jetty.websocket.common.events.EventDriverFactory;
+import org.eclipse.jetty.websocket.common.events.EventDriverImpl;
+
+/**
+ * Hands an Endpoint each text message as the raw UTF-8 bytes of its frames,
+ * instead of the String Jetty would otherwise decode for every message. <br/>
+ * <br/>
+ * A message that fits in one frame, which is all of Coinbase's, is read in
+ * place out of the network buffer Jetty parsed it from; Jetty takes that
+ * buffer from its pool and recycles it once the frame has been handled. A
+ * message split across frames is gathered into one buffer of our own, which
+ * is reused for every such message. Either way the Endpoint only sees the
+ * bytes until onText() returns, so it has to copy anything it keeps, which
+ * everything downstream of CoinbaseClient.receive() already does. <br/>
+ * <br/>
+ * Jetty picks this driver for any Endpoint passed to a WebSocketClient once
+ * install() has been called on it.
+ */
+public class FrameDriver extends AbstractEventDriver {
+
+    /**
+     * What the socket gives us.
+     */
+    public interface Endpoint {
+        void onConnect(Session session);
+
+        /**
+         * @param message
+         *            only valid until this returns. Each char is one byte of
+         *            UTF-8; toString() decodes it properly.
+         */
+        void onText(CharSequence message);
+
+        void onClose(int statusCode, String reason);
+
+        void onError(Throwable error);
+    }
+
+    private static final EventDriverImpl IMPLEMENTATION = new EventDriverImpl() {
+        @Override
+        public boolean supports(Object websocket) {
+            return websocket instanceof Endpoint;
+        }
+
+        @Override
+        public EventDriver create(Object websocket, WebSocketPolicy policy) {
+            return new FrameDriver(policy, (Endpoint) websocket);
+        }
+
+        @Override
+        public String describeRule() {
+            return "class implements " + Endpoint.class.getName();
+        }
+    };
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Endpoint endpoint;
+    private final ByteSequence text = new ByteSequence();
+
+    // Gathers the frames of a fragmented message.
+    private ByteBuffer fragments = ByteBuffer.allocate(4096);
+    private boolean fragmented;
+    private boolean closed;
+
+    public FrameDriver(WebSocketPolicy policy, Endpoint endpoint) {
+        super(policy, endpoint);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Lets the client connect Endpoints.
+     */
+    public static void install(WebSocketClient client) {
+        install(client.getEventDriverFactory());
+    }
+
+    public static void install(EventDriverFactory factory) {
+        if (!factory.getImplementations().contains(IMPLEMENTATION)) {
+            factory.addImplementation(IMPLEMENTATION);
+        }
+    }
+
+    @Override
+    public void onConnect() {
+        endpoint.onConnect(session);
+    }
+
+    @Override
+    public void onTextFrame(ByteBuffer payload, boolean fin) {
+        if (payload == null) {
+            payload = EMPTY;
+        }
+        if (fin) {
+            fragmented = false;
+            endpoint.onText(text.wrap(payload));
+        } else {
+            fragments.clear();
+            append(payload);
+            fragmented = true;
+        }
+    }
+
+    @Override
+    public void onContinuationFrame(ByteBuffer payload, boolean fin) {
+        if (!fragmented) {
+            // Jetty's parser already rejects these; nothing to add to.
+            return;
+        }
+        if (payload != null) {
+            append(payload);
+        }
+        if (fin) {
+            fragmented = false;
+            fragments.flip();
+            endpoint.onText(text.wrap(fragments));
+        }
+    }
+
+    private void append(ByteBuffer payload) {
+        if (fragments.remaining() < payload.remaining()) {
+            int needed = fragments.position() + payload.remaining();
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, 2 * fragments.capacity()));
+            fragments.flip();
+            bigger.put(fragments);
+            fragments = bigger;
+        }
+        // Leave the frame's buffer as it was.
+        fragments.put(payload.duplicate());
+    }
+
+    @Override
+    public void onClose(CloseInfo close) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        endpoint.onClose(close.getStatusCode(), close.getReason());
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        endpoint.onError(error);
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+    }
+
+    @Override
+    public void onTextMessage(String message) {
+    }
+
+    @Override
+    public void onBinaryFrame(ByteBuffer payload, boolean fin) {
+    }
+
+    @Override
+    public void onBinaryMessage(byte[] data) {
+    }
+
+    @Override
+    public void onReader(Reader reader) {
+    }
+
+    @Override
+    public void onInputStream(InputStream stream) {
+    }
+}
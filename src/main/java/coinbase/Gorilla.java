@@ -0,0 +1,236 @@
+package coinbase;
+
+import java.util.Arrays;
+
+/**
+ * Compresses blocks of candles the way Facebook's Gorilla compresses time
+ * series. <br/>
+ * <br/>
+ * Each column is compressed on its own. Times are stored as the change in
+ * the gap between them (the delta of the delta), which for evenly spaced
+ * candles is 0 and takes a single bit. Prices and volumes are stored as the
+ * XOR of each value's bits with the previous value's: close values share
+ * their sign, exponent and leading mantissa bits, so only the few bits in
+ * between that differ are written, and a repeated value takes one bit. <br/>
+ * <br/>
+ * Decoding is exact: every double comes back bit for bit. Candle times must
+ * be whole seconds.
+ */
+public final class Gorilla {
+
+    private Gorilla() {
+    }
+
+    /**
+     * Compresses count candles starting at from.
+     *
+     * @return the compressed block.
+     */
+    public static byte[] encode(Candles candles, int from, int count) {
+        BitWriter out = new BitWriter(count * 8);
+
+        double[] times = candles.column(Candles.TIME);
+        long previousTime = 0;
+        long previousDelta = 0;
+        for (int i = from; i < from + count; i++) {
+            long time = (long) times[i];
+            if (time != times[i]) {
+                throw new IllegalArgumentException("Candle time isn't whole seconds: " + times[i]);
+            }
+            if (i == from) {
+                out.write(time, 64);
+            } else {
+                long delta = time - previousTime;
+                writeDeltaOfDelta(out, delta - previousDelta);
+                previousDelta = delta;
+            }
+            previousTime = time;
+        }
+
+        for (int column = Candles.LOW; column < Candles.COLUMNS; column++) {
+            double[] values = candles.column(column);
+            long previous = 0;
+            int previousLeading = -1;
+            int previousTrailing = 0;
+            for (int i = from; i < from + count; i++) {
+                long bits = Double.doubleToRawLongBits(values[i]);
+                if (i == from) {
+                    out.write(bits, 64);
+                    previous = bits;
+                    continue;
+                }
+                long xor = bits ^ previous;
+                previous = bits;
+                if (xor == 0) {
+                    out.write(0, 1);
+                    continue;
+                }
+                // Leading zeros are stored in 5 bits.
+                int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (previousLeading >= 0 && leading >= previousLeading
+                        && trailing >= previousTrailing) {
+                    // The differing bits fit in the last value's window.
+                    out.write(0b10, 2);
+                    out.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                } else {
+                    int length = 64 - leading - trailing;
+                    out.write(0b11, 2);
+                    out.write(leading, 5);
+                    out.write(length - 1, 6);
+                    out.write(xor >>> trailing, length);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long dod) {
+        if (dod == 0) {
+            out.write(0, 1);
+        } else if (dod >= -64 && dod < 64) {
+            out.write(0b10, 2);
+            out.write(dod, 7);
+        } else if (dod >= -256 && dod < 256) {
+            out.write(0b110, 3);
+            out.write(dod, 9);
+        } else if (dod >= -2048 && dod < 2048) {
+            out.write(0b1110, 4);
+            out.write(dod, 12);
+        } else {
+            out.write(0b1111, 4);
+            out.write(dod, 64);
+        }
+    }
+
+    /**
+     * Decompresses a block of count candles, appending them to the Candles.
+     */
+    public static void decode(byte[] block, int count, Candles into) {
+        into.ensureCapacity(into.size() + count);
+        int start = into.size();
+        BitReader in = new BitReader(block);
+
+        double[] times = into.column(Candles.TIME);
+        long time = 0;
+        long delta = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                time = in.read(64);
+            } else {
+                delta += readDeltaOfDelta(in);
+                time += delta;
+            }
+            times[start + i] = time;
+        }
+
+        for (int column = Candles.LOW; column < Candles.COLUMNS; column++) {
+            double[] values = into.column(column);
+            long bits = 0;
+            int leading = 0;
+            int trailing = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0) {
+                    bits = in.read(64);
+                } else if (in.read(1) == 1) {
+                    if (in.read(1) == 1) {
+                        leading = (int) in.read(5);
+                        int length = (int) in.read(6) + 1;
+                        trailing = 64 - leading - length;
+                    }
+                    bits ^= in.read(64 - leading - trailing) << trailing;
+                }
+                values[start + i] = Double.longBitsToDouble(bits);
+            }
+        }
+        into.setSize(start + count);
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (in.read(1) == 0) {
+            return 0;
+        }
+        if (in.read(1) == 0) {
+            return signed(in.read(7), 7);
+        }
+        if (in.read(1) == 0) {
+            return signed(in.read(9), 9);
+        }
+        if (in.read(1) == 0) {
+            return signed(in.read(12), 12);
+        }
+        return in.read(64);
+    }
+
+    private static long signed(long value, int bits) {
+        return value << (64 - bits) >> (64 - bits);
+    }
+
+    /**
+     * Writes values of up to 64 bits, most significant bit first.
+     */
+    private static final class BitWriter {
+        private byte[] bytes;
+        private int size;
+        // Bits not yet written out, in the low accumulatedBits bits.
+        private long accumulator;
+        private int accumulatedBits;
+
+        BitWriter(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void write(long value, int bits) {
+            if (bits > 32) {
+                write(value >>> 32, bits - 32);
+                bits = 32;
+            }
+            accumulator = accumulator << bits | value & (-1L >>> (64 - bits));
+            accumulatedBits += bits;
+            while (accumulatedBits >= 8) {
+                accumulatedBits -= 8;
+                if (size == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, size * 2);
+                }
+                bytes[size++] = (byte) (accumulator >>> accumulatedBits);
+            }
+        }
+
+        byte[] toByteArray() {
+            if (accumulatedBits > 0) {
+                // Pad the last byte with zeros.
+                write(0, 8 - accumulatedBits);
+            }
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads back what a BitWriter wrote.
+     */
+    private static final class BitReader {
+        private final byte[] bytes;
+        private int position;
+        private long accumulator;
+        private int accumulatedBits;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(int bits) {
+            if (bits > 32) {
+                long high = read(bits - 32);
+                return high << 32 | read(32);
+            }
+            while (accumulatedBits < bits) {
+                accumulator = accumulator << 8 | bytes[position++] & 0xFF;
+                accumulatedBits += 8;
+            }
+            accumulatedBits -= bits;
+            return accumulator >>> accumulatedBits & (-1L >>> (64 - bits));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package coinbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only record of every message the websocket delivered, so that a
+ * session can be replayed later. <br/>
+ * <br/>
+ * The journal is a directory of fixed size segment files, each memory-mapped
+ * while it is written. A record is a 4 byte length, the time the message was
+ * received (nanoseconds since the epoch), its sequence number and then the
+ * message in UTF-8, padded to a multiple of 4 bytes. Appending is a copy into
+ * mapped memory, with no system call and no allocation; when a segment is
+ * full it is marked as ended and the next one is mapped. <br/>
+ * <br/>
+ * The length is written after the rest of the record. A reader stops at the
+ * first length of 0, so a record cut short by a crash is never read. Opening
+ * a journal always starts a new segment rather than appending after a tail
+ * that may be torn. <br/>
+ * <br/>
+ * Set it on a CoinbaseClient with setJournal(); read it back with
+ * JournalReader.
+ */
+public class Journal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    // length, received nanos, sequence.
+    static final int HEADER_BYTES = 4 + 8 + 8;
+    // Marks the end of a segment that was rolled.
+    static final int END_OF_SEGMENT = -1;
+
+    static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentBytes;
+
+    private FileChannel file;
+    private MappedByteBuffer segment;
+    private long segmentIndex;
+    private int position;
+
+    // Receive times come from nanoTime(), anchored to the wall clock once, so
+    // they never go backwards.
+    private final long epochNanosBase = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private final long nanoTimeBase = System.nanoTime();
+
+    private long records;
+
+    public Journal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the journal in the directory, creating it if needed. Writing
+     * starts in a new segment after any already there.
+     */
+    public Journal(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Path> existing = segments(directory);
+        segmentIndex = existing.isEmpty() ? 0 : index(existing.get(existing.size() - 1)) + 1;
+        map();
+    }
+
+    /**
+     * @return the segment files in the directory, oldest first.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // The names are zero padded, so this is numeric order.
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long index(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private void map() throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", segmentIndex, SUFFIX));
+        file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        position = 0;
+    }
+
+    private void roll() throws IOException {
+        if (position + 4 <= segmentBytes) {
+            segment.putInt(position, END_OF_SEGMENT);
+        }
+        segment.force();
+        file.close();
+        segmentIndex++;
+        map();
+    }
+
+    /**
+     * @return the current time as nanoseconds since the epoch.
+     */
+    public long now() {
+        return epochNanosBase + System.nanoTime() - nanoTimeBase;
+    }
+
+    /**
+     * Appends a message received now.
+     */
+    public void append(long sequence, CharSequence message) throws IOException {
+        append(now(), sequence, message);
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @param receivedNanos
+     *            when it was received, in nanoseconds since the epoch.
+     */
+    public synchronized void append(long receivedNanos, long sequence, CharSequence message)
+            throws IOException {
+        int length = message.length();
+        // Each char takes at most 3 bytes, a surrogate pair 4 for 2 chars.
+        if (HEADER_BYTES + 3L * length > segmentBytes) {
+            throw new IOException("Message of " + length + " chars is too big for a segment");
+        }
+        if (position + HEADER_BYTES + 3 * length > segmentBytes) {
+            roll();
+        }
+
+        MappedByteBuffer out = segment;
+        int start = position + HEADER_BYTES;
+        int pos = start;
+        if (message instanceof ByteSequence) {
+            // Already UTF-8, one byte per char.
+            ByteSequence bytes = (ByteSequence) message;
+            for (int i = 0; i < length; i++) {
+                out.put(pos++, bytes.byteAt(i));
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                char c = message.charAt(i);
+                if (c < 0x80) {
+                    out.put(pos++, (byte) c);
+                } else if (c < 0x800) {
+                    out.put(pos++, (byte) (0xC0 | c >> 6));
+                    out.put(pos++, (byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(message.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, message.charAt(++i));
+                    out.put(pos++, (byte) (0xF0 | codePoint >> 18));
+                    out.put(pos++, (byte) (0x80 | codePoint >> 12 & 0x3F));
+                    out.put(pos++, (byte) (0x80 | codePoint >> 6 & 0x3F));
+                    out.put(pos++, (byte) (0x80 | codePoint & 0x3F));
+                } else {
+                    out.put(pos++, (byte) (0xE0 | c >> 12));
+                    out.put(pos++, (byte) (0x80 | c >> 6 & 0x3F));
+                    out.put(pos++, (byte) (0x80 | c & 0x3F));
+                }
+            }
+        }
+        out.putLong(position + 4, receivedNanos);
+        out.putLong(position + 12, sequence);
+        // Last, so the record only exists once it is complete.
+        out.putInt(position, pos - start);
+
+        position = align(pos);
+        records++;
+    }
+
+    static int align(int position) {
+        return (position + 3) & ~3;
+    }
+
+    /**
+     * @return how many records this journal has appended since it was opened.
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Flushes the current segment to disk. Without this, records survive the
+     * process crashing but not the machine.
+     */
+    public synchronized void force() {
+        segment.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segment.force();
+        file.close();
+    }
+}
@@ -0,0 +1,116 @@
+package coinbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Reads the records of a Journal in the order they were written, segment by
+ * segment. <br/>
+ * <br/>
+ * Each segment is mapped read only and a record's payload is handed out as a
+ * view of the mapping, so reading copies nothing. A record that was cut short
+ * (a length of 0) ends its segment.
+ */
+public class JournalReader implements Closeable {
+
+    private final List<Path> segments;
+    private int segmentIndex = -1;
+
+    private FileChannel file;
+    private MappedByteBuffer segment;
+    private int position;
+
+    // Views of the current segment, reused for every record.
+    private ByteBuffer payload;
+
+    private long receivedNanos;
+    private long sequence;
+
+    public JournalReader(Path directory) throws IOException {
+        segments = Journal.segments(directory);
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false once there are no more records.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (segment != null && position + Journal.HEADER_BYTES <= segment.limit()) {
+                int length = segment.getInt(position);
+                if (length > 0 && position + Journal.HEADER_BYTES + length <= segment.limit()) {
+                    receivedNanos = segment.getLong(position + 4);
+                    sequence = segment.getLong(position + 12);
+                    int start = position + Journal.HEADER_BYTES;
+                    payload.limit(start + length).position(start);
+                    position = Journal.align(start + length);
+                    return true;
+                }
+            }
+            // The end of this segment, whether rolled, torn or just unused.
+            if (!openNext()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean openNext() throws IOException {
+        closeSegment();
+        if (++segmentIndex >= segments.size()) {
+            return false;
+        }
+        file = FileChannel.open(segments.get(segmentIndex), StandardOpenOption.READ);
+        segment = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        payload = segment.duplicate();
+        position = 0;
+        return true;
+    }
+
+    private void closeSegment() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+            segment = null;
+        }
+    }
+
+    /**
+     * @return when the current record was received, in nanoseconds since the
+     *         epoch.
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the current record's UTF-8 message between the buffer's position
+     *         and limit. Only valid until next() is called.
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the current record's message as a String.
+     */
+    public String getMessage() {
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
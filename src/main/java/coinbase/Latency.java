@@ -0,0 +1,92 @@
+package coinbase;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time goes between a message arriving on the socket and an agent
+ * deciding what to do about it. <br/>
+ * <br/>
+ * Every event is stamped with System.nanoTime() when it is received and again
+ * when it has been decoded and is handed to its product. From those stamps,
+ * and from timing the decoder itself, each stage is recorded into its own
+ * LatencyHistogram:
+ * <ul>
+ * <li>PARSE: decoding the message, and nothing else; the raw
+ * WebSocketAdapters and the Journal run before it is handed on and only show
+ * up in END_TO_END.</li>
+ * <li>QUEUE: from being decoded to a listener starting on it, i.e. sequence
+ * checks plus, in ring mode, waiting in the ring.</li>
+ * <li>DISPATCH: each MarketListener.onMarketEvent() call.</li>
+ * <li>DECISION: each agent's makeDecision().</li>
+ * <li>END_TO_END: from the message being received to a decision being made.
+ * </li>
+ * </ul>
+ * The histograms are shared by every client and agent in the process.
+ */
+public final class Latency {
+
+    public static final LatencyHistogram PARSE = new LatencyHistogram("parse");
+    public static final LatencyHistogram QUEUE = new LatencyHistogram("queue");
+    public static final LatencyHistogram DISPATCH = new LatencyHistogram("dispatch");
+    public static final LatencyHistogram DECISION = new LatencyHistogram("decision");
+    public static final LatencyHistogram END_TO_END = new LatencyHistogram("end to end");
+
+    private static final LatencyHistogram[] STAGES = { PARSE, QUEUE, DISPATCH, DECISION,
+            END_TO_END };
+
+    private static ScheduledExecutorService reporter;
+
+    private Latency() {
+    }
+
+    /**
+     * @return every stage's counts so far, in the order above.
+     */
+    public static LatencyHistogram.Snapshot[] snapshot() {
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            snapshots[i] = STAGES[i].snapshot();
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return every stage's counts since the last reset, starting afresh.
+     */
+    public static LatencyHistogram.Snapshot[] snapshotAndReset() {
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            snapshots[i] = STAGES[i].snapshotAndReset();
+        }
+        return snapshots;
+    }
+
+    /**
+     * Prints the latencies of each interval to System.out, one line per stage
+     * that saw anything, and resets them. Replaces any earlier reporting.
+     */
+    public static synchronized void startReporting(long period, TimeUnit unit) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Latency");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            for (LatencyHistogram.Snapshot snapshot : snapshotAndReset()) {
+                if (snapshot.getCount() > 0) {
+                    System.out.println(snapshot);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package coinbase;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in logarithmic buckets, like an HdrHistogram, so that
+ * percentiles far out in the tail can be read back to within about 3%. <br/>
+ * <br/>
+ * Every power of two is split into 32 linear sub-buckets (values below 64ns
+ * are exact), and anything over about 18 minutes counts as 18 minutes.
+ * record() is a couple of array index calculations and one atomic increment,
+ * with no locks and no allocation, so it can be called from any number of
+ * threads on the hot path. Snapshots are taken without stopping recording.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // 2^40ns, about 18 minutes.
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Counts one duration.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            // nanoTime() from different cores can be slightly out.
+            nanos = 0;
+        } else if (nanos > MAX_VALUE) {
+            nanos = MAX_VALUE;
+        }
+        counts.incrementAndGet(index(nanos));
+        total.add(nanos);
+    }
+
+    /**
+     * Counts the time since startNanos, a System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Keep the top SUB_BUCKET_BITS + 1 bits.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value counted in the bucket at index.
+     */
+    static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return everything counted so far.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(name, copy, total.sum());
+    }
+
+    /**
+     * @return everything counted since the last reset, and starts counting
+     *         afresh. A duration recorded meanwhile lands in one interval or
+     *         the next, never neither.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.getAndSet(i, 0);
+        }
+        return new Snapshot(name, copy, total.sumThenReset());
+    }
+
+    /**
+     * The counts of a LatencyHistogram at one moment.
+     */
+    public static class Snapshot {
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long total;
+
+        Snapshot(String name, long[] counts, long total) {
+            this.name = name;
+            this.counts = counts;
+            this.total = total;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @param percentile
+         *            from 0 to 100, e.g. 99.9.
+         * @return the duration, in nanoseconds, that the given percentage of
+         *         durations were at or below.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return getMax();
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: %d, mean %.1fus, p50 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus",
+                    name, count, getMean() / 1e3, getValueAtPercentile(50) / 1e3,
+                    getValueAtPercentile(99) / 1e3, getValueAtPercentile(99.9) / 1e3,
+                    getMax() / 1e3);
+        }
+    }
+}
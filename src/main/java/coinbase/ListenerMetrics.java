@@ -0,0 +1,86 @@
+package coinbase;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Counts the events one MarketListener has been given and how long it took
+ * over them, and how far behind it is when it runs on a ring. Published over
+ * JMX while the listener is added to a CoinbaseClient.
+ */
+public class ListenerMetrics implements ListenerMetricsMXBean {
+
+    private final String productId;
+    private final String listener;
+    private final RateCounter events = new RateCounter();
+    private final LongAdder dispatchNanos = new LongAdder();
+
+    // Set in ring mode.
+    private volatile RingBuffer ring;
+    private volatile EventProcessor processor;
+
+    ObjectName objectName;
+
+    ListenerMetrics(String productId, MarketListener listener) {
+        this.productId = productId;
+        this.listener = listener.getClass().getName() + "@"
+                + Integer.toHexString(System.identityHashCode(listener));
+    }
+
+    void setProcessor(RingBuffer ring, EventProcessor processor) {
+        this.ring = ring;
+        this.processor = processor;
+    }
+
+    /**
+     * Counts one call to the listener.
+     */
+    void record(long nanos) {
+        events.increment();
+        dispatchNanos.add(nanos);
+    }
+
+    @Override
+    public String getProductId() {
+        return productId;
+    }
+
+    @Override
+    public String getListener() {
+        return listener;
+    }
+
+    @Override
+    public long getEvents() {
+        return events.get();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return events.getRate();
+    }
+
+    @Override
+    public long getDispatchNanos() {
+        return dispatchNanos.sum();
+    }
+
+    @Override
+    public double getMeanDispatchMicros() {
+        long count = events.get();
+        return count == 0 ? 0 : dispatchNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        EventProcessor processor = this.processor;
+        return processor == null ? 0 : ring.getLag(processor);
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        EventProcessor processor = this.processor;
+        return processor == null ? 0 : processor.getMaxLag();
+    }
+}
@@ -0,0 +1,31 @@
+package coinbase;
+
+/**
+ * How one MarketListener is keeping up, as seen over JMX. See
+ * ListenerMetrics.
+ */
+public interface ListenerMetricsMXBean {
+
+    String getProductId();
+
+    String getListener();
+
+    long getEvents();
+
+    double getEventsPerSecond();
+
+    /**
+     * @return the total time spent in the listener's onMarketEvent().
+     */
+    long getDispatchNanos();
+
+    double getMeanDispatchMicros();
+
+    /**
+     * @return how many events the listener is behind, or 0 if it is called
+     *         directly.
+     */
+    long getQueueDepth();
+
+    long getMaxQueueDepth();
+}
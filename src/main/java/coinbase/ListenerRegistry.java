@@ -0,0 +1,172 @@
+package coinbase;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+
+/**
+ * Holds the CoinbaseClient's listeners as an immutable snapshot that is
+ * replaced atomically whenever a listener is added or removed. <br/>
+ * <br/>
+ * The socket thread reads the snapshot once per message and never takes a
+ * lock, so listeners can be added and removed from any thread while the feed
+ * is running. Because every message is dispatched from a single snapshot, a
+ * listener always sees whole messages: it starts with the first message after
+ * it was added and stops after the last message before it was removed.
+ */
+class ListenerRegistry {
+
+    /**
+     * One consistent view of every listener. Never modified once published.
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new WebSocketAdapter[0],
+                new MarketListener[0], new EventProcessor[0], new ListenerMetrics[0]);
+
+        final WebSocketAdapter[] adapters;
+        final MarketListener[] listeners;
+        // The consumer running each market listener, or null when listeners
+        // are called directly. Parallel to listeners.
+        final EventProcessor[] processors;
+        // What each market listener has been given. Parallel to listeners.
+        final ListenerMetrics[] metrics;
+
+        private Snapshot(WebSocketAdapter[] adapters, MarketListener[] listeners,
+                EventProcessor[] processors, ListenerMetrics[] metrics) {
+            this.adapters = adapters;
+            this.listeners = listeners;
+            this.processors = processors;
+            this.metrics = metrics;
+        }
+
+        int indexOf(MarketListener listener) {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int indexOf(WebSocketAdapter adapter) {
+            for (int i = 0; i < adapters.length; i++) {
+                if (adapters[i] == adapter) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean isEmpty() {
+            return adapters.length == 0 && listeners.length == 0;
+        }
+    }
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+    /**
+     * @return the current listeners. Read it once and use it for a whole
+     *         message.
+     */
+    Snapshot get() {
+        return snapshot.get();
+    }
+
+    /**
+     * @return false if the adapter was already registered.
+     */
+    boolean add(WebSocketAdapter adapter) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.indexOf(adapter) >= 0) {
+                return false;
+            }
+            WebSocketAdapter[] adapters = Arrays.copyOf(current.adapters,
+                    current.adapters.length + 1);
+            adapters[adapters.length - 1] = adapter;
+            if (snapshot.compareAndSet(current, new Snapshot(adapters, current.listeners,
+                    current.processors, current.metrics))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return false if the adapter was not registered.
+     */
+    boolean remove(WebSocketAdapter adapter) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            int index = current.indexOf(adapter);
+            if (index < 0) {
+                return false;
+            }
+            if (snapshot.compareAndSet(current, new Snapshot(without(current.adapters, index,
+                    new WebSocketAdapter[current.adapters.length - 1]), current.listeners,
+                    current.processors, current.metrics))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param processor
+     *            the consumer that will run the listener, or null if it is
+     *            called directly.
+     * @param listenerMetrics
+     *            counts what the listener is given.
+     * @return false if the listener was already registered.
+     */
+    boolean add(MarketListener listener, EventProcessor processor,
+            ListenerMetrics listenerMetrics) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.indexOf(listener) >= 0) {
+                return false;
+            }
+            MarketListener[] listeners = Arrays.copyOf(current.listeners,
+                    current.listeners.length + 1);
+            listeners[listeners.length - 1] = listener;
+            EventProcessor[] processors = Arrays.copyOf(current.processors,
+                    current.processors.length + 1);
+            processors[processors.length - 1] = processor;
+            ListenerMetrics[] metrics = Arrays.copyOf(current.metrics, current.metrics.length + 1);
+            metrics[metrics.length - 1] = listenerMetrics;
+            if (snapshot.compareAndSet(current, new Snapshot(current.adapters, listeners,
+                    processors, metrics))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the processor that was running the listener, null if it was
+     *         called directly or was not registered.
+     */
+    EventProcessor remove(MarketListener listener) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            int index = current.indexOf(listener);
+            if (index < 0) {
+                return null;
+            }
+            MarketListener[] listeners = without(current.listeners, index,
+                    new MarketListener[current.listeners.length - 1]);
+            EventProcessor[] processors = without(current.processors, index,
+                    new EventProcessor[current.processors.length - 1]);
+            ListenerMetrics[] metrics = without(current.metrics, index,
+                    new ListenerMetrics[current.metrics.length - 1]);
+            if (snapshot.compareAndSet(current, new Snapshot(current.adapters, listeners,
+                    processors, metrics))) {
+                return current.processors[index];
+            }
+        }
+    }
+
+    private static <T> T[] without(T[] array, int index, T[] result) {
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+}
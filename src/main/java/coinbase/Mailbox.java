@@ -0,0 +1,419 @@
+package coinbase;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.management.ObjectName;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+
+/**
+ * A bounded queue and a worker thread of its own for one listener, so that
+ * the listener can be slow, block or throw without holding up the socket or
+ * any other listener. <br/>
+ * <br/>
+ * The socket thread only copies each message into the mailbox; the worker
+ * hands them to the listener in order. When the listener falls so far behind
+ * that the mailbox is full, its OverflowPolicy decides whether the socket
+ * waits or messages are dropped. Messages are copied into slots made up
+ * front, so a MarketEvent mailbox allocates nothing per message. <br/>
+ * <br/>
+ * The worker is a platform thread or, on a JDK that has them and when asked
+ * for, a virtual thread. Connect, close and error callbacks are not queued;
+ * they are made on the socket thread, and anything they throw is caught. <br/>
+ * <br/>
+ * See CoinbaseClient.setListenerIsolation().
+ */
+public class Mailbox<T> implements Runnable, MailboxMXBean {
+
+    // How long stop() lets the listener finish before interrupting it, and
+    // how long it waits in all.
+    static final long STOP_GRACE_MILLIS = 100;
+    static final long STOP_TIMEOUT_MILLIS = 1000;
+
+    private final String name;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Consumer<T> handler;
+
+    // Copies a message into a slot; null when the slots hold the messages
+    // themselves (e.g. immutable Strings).
+    private final BiConsumer<T, T> copier;
+
+    private final Object[] slots;
+    // When each slot's message arrived, for the lag.
+    private final long[] arrivals;
+    // The worker's copy of the message it is handling.
+    private final T taken;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private int size;
+    private boolean running = true;
+
+    private int maxSize;
+    private long dropped;
+    // Only written by the worker.
+    private volatile long delivered;
+    private volatile long failures;
+
+    private Thread thread;
+    private ObjectName objectName;
+
+    /**
+     * @param factory
+     *            makes the slots messages are copied into, or null to queue
+     *            the messages themselves.
+     * @param copier
+     *            copies a message into a slot. Only used with a factory.
+     * @param handler
+     *            hands a message to the listener, on the worker thread.
+     */
+    Mailbox(String name, int capacity, OverflowPolicy policy, Supplier<T> factory,
+            BiConsumer<T, T> copier, Consumer<T> handler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.handler = handler;
+        this.copier = factory == null ? null : copier;
+        slots = new Object[capacity];
+        arrivals = new long[capacity];
+        if (factory != null) {
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = factory.get();
+            }
+        }
+        taken = factory == null ? null : factory.get();
+    }
+
+    /**
+     * A mailbox for a MarketListener.
+     */
+    static Mailbox<MarketEvent> of(MarketListener listener, int capacity,
+            OverflowPolicy policy) {
+        return new Mailbox<MarketEvent>(nameOf(listener), capacity, policy, MarketEvent::new,
+                (from, into) -> into.copyFrom(from), listener::onMarketEvent);
+    }
+
+    /**
+     * A mailbox for a raw WebSocketAdapter's message text.
+     */
+    static Mailbox<String> of(WebSocketAdapter adapter, int capacity,
+            OverflowPolicy policy) {
+        return new Mailbox<String>(nameOf(adapter), capacity, policy, null, null,
+                adapter::onWebSocketText);
+    }
+
+    private static String nameOf(Object listener) {
+        return listener.getClass().getName() + "@"
+                + Integer.toHexString(System.identityHashCode(listener));
+    }
+
+    /**
+     * Starts the worker.
+     *
+     * @param virtual
+     *            run it on a virtual thread if this JDK has them.
+     */
+    synchronized void start(boolean virtual) {
+        thread = virtual ? startVirtualThread(this) : null;
+        if (thread == null) {
+            thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        thread.setName("Mailbox-" + name);
+        objectName = Metrics.register(Metrics.DOMAIN, "Mailbox", name, this);
+    }
+
+    /**
+     * @return the started virtual thread, or null before Java 21.
+     */
+    private static Thread startVirtualThread(Runnable task) {
+        try {
+            Method start = Thread.class.getMethod("startVirtualThread", Runnable.class);
+            return (Thread) start.invoke(null, task);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops the worker once it has finished the message it is handling.
+     * Waiting messages are discarded. <br/>
+     * <br/>
+     * Waits briefly for the worker, unless called from the worker itself; a
+     * listener still busy after that is interrupted, and one that doesn't
+     * return even then is left to finish on its own after STOP_TIMEOUT_MILLIS,
+     * so a stuck listener can't hang whoever removes it.
+     */
+    void stop() {
+        Thread current;
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        synchronized (this) {
+            current = thread;
+            Metrics.unregister(objectName);
+            objectName = null;
+        }
+        if (current != null && current != Thread.currentThread()) {
+            try {
+                current.join(STOP_GRACE_MILLIS);
+                if (current.isAlive()) {
+                    current.interrupt();
+                    current.join(STOP_TIMEOUT_MILLIS - STOP_GRACE_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (current.isAlive()) {
+                System.err.println(current.getName() + " is still busy after "
+                        + STOP_TIMEOUT_MILLIS + "ms; not waiting for it");
+            }
+        }
+    }
+
+    /**
+     * Queues a copy of the message. Called on the socket thread.
+     */
+    @SuppressWarnings("unchecked")
+    void offer(T message) {
+        lock.lock();
+        try {
+            if (size == capacity) {
+                switch (policy) {
+                case BLOCK:
+                    while (size == capacity && running) {
+                        notFull.awaitUninterruptibly();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    head = (head + 1) % capacity;
+                    size--;
+                    dropped++;
+                    break;
+                case CONFLATE:
+                    head = (head + size) % capacity;
+                    dropped += size;
+                    size = 0;
+                    break;
+                }
+            }
+            if (!running) {
+                return;
+            }
+            int tail = (head + size) % capacity;
+            if (copier == null) {
+                slots[tail] = message;
+            } else {
+                copier.accept(message, (T) slots[tail]);
+            }
+            arrivals[tail] = System.nanoTime();
+            size++;
+            if (size > maxSize) {
+                maxSize = size;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        while (true) {
+            T message;
+            lock.lock();
+            try {
+                while (size == 0 && running) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (!running) {
+                    return;
+                }
+                if (copier == null) {
+                    message = (T) slots[head];
+                    slots[head] = null;
+                } else {
+                    // Copy it out so the slot can be reused while we work.
+                    copier.accept((T) slots[head], taken);
+                    message = taken;
+                }
+                head = (head + 1) % capacity;
+                size--;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                handler.accept(message);
+            } catch (RuntimeException e) {
+                // Only this listener misses out.
+                e.printStackTrace();
+                failures++;
+            }
+            delivered++;
+        }
+    }
+
+    /**
+     * Makes a connect, close or error callback on the calling thread, catching
+     * anything it throws.
+     */
+    static void call(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return policy.name();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        lock.lock();
+        try {
+            return maxSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public double getLagMicros() {
+        lock.lock();
+        try {
+            return size == 0 ? 0 : (System.nanoTime() - arrivals[head]) / 1e3;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getDelivered() {
+        return delivered;
+    }
+
+    @Override
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Stands in for a MarketListener, queueing its events.
+     */
+    static class IsolatedListener implements MarketListener {
+        final MarketListener listener;
+        final Mailbox<MarketEvent> mailbox;
+
+        IsolatedListener(MarketListener listener, Mailbox<MarketEvent> mailbox) {
+            this.listener = listener;
+            this.mailbox = mailbox;
+        }
+
+        @Override
+        public void onConnect(Session session) {
+            call(() -> listener.onConnect(session));
+        }
+
+        @Override
+        public void onMarketEvent(MarketEvent event) {
+            mailbox.offer(event);
+        }
+
+        @Override
+        public void onClose(int statusCode, String reason) {
+            call(() -> listener.onClose(statusCode, reason));
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            call(() -> listener.onError(error));
+        }
+    }
+
+    /**
+     * Stands in for a WebSocketAdapter, queueing its message text.
+     */
+    static class IsolatedAdapter extends WebSocketAdapter {
+        final WebSocketAdapter adapter;
+        final Mailbox<String> mailbox;
+
+        IsolatedAdapter(WebSocketAdapter adapter, Mailbox<String> mailbox) {
+            this.adapter = adapter;
+            this.mailbox = mailbox;
+        }
+
+        @Override
+        public void onWebSocketConnect(Session session) {
+            call(() -> adapter.onWebSocketConnect(session));
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            mailbox.offer(message);
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+            call(() -> adapter.onWebSocketClose(statusCode, reason));
+        }
+
+        @Override
+        public void onWebSocketError(Throwable error) {
+            call(() -> adapter.onWebSocketError(error));
+        }
+    }
+}
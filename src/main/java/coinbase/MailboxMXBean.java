@@ -0,0 +1,38 @@
+package coinbase;
+
+/**
+ * How far behind an isolated listener is, as seen over JMX. See Mailbox.
+ */
+public interface MailboxMXBean {
+
+    String getName();
+
+    String getOverflowPolicy();
+
+    int getCapacity();
+
+    /**
+     * @return how many messages are waiting.
+     */
+    int getQueueDepth();
+
+    int getMaxQueueDepth();
+
+    /**
+     * @return how long the oldest waiting message has waited.
+     */
+    double getLagMicros();
+
+    long getDelivered();
+
+    /**
+     * @return how many messages were dropped, or conflated away, because the
+     *         mailbox was full.
+     */
+    long getDropped();
+
+    /**
+     * @return how many messages the listener threw an exception for.
+     */
+    long getFailures();
+}
@@ -0,0 +1,287 @@
+package coinbase;
+
+/**
+ * A single message from the Coinbase websocket feed, decoded once by the
+ * CoinbaseClient and shared with every MarketListener. <br/>
+ * <br/>
+ * Events are pooled: the client reuses the same instance for every message,
+ * so a listener must copy whatever it wants to keep (or call copy()) before
+ * returning from onMarketEvent.
+ */
+public final class MarketEvent {
+
+    /**
+     * Each type has a code, which is what a BinaryTick stores. Codes are
+     * written to disk, so they must never change; give a new type the next
+     * unused code.
+     */
+    public enum Type {
+        MATCH(0), RECEIVED(1), OPEN(2), DONE(3), CHANGE(4), ERROR(5), UNKNOWN(6),
+
+        /**
+         * Not a feed message. Sent by the client after it has resynced, see
+         * SequenceGuard. getSnapshot() holds the orderbook and getSequence() its
+         * sequence.
+         */
+        SNAPSHOT(7);
+
+        private static final Type[] BY_CODE = new Type[8];
+
+        static {
+            for (Type type : values()) {
+                BY_CODE[type.code] = type;
+            }
+        }
+
+        private final int code;
+
+        private Type(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return the type with the code, or UNKNOWN if there is none.
+         */
+        public static Type ofCode(int code) {
+            Type type = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+            return type == null ? UNKNOWN : type;
+        }
+
+        /**
+         * @param type
+         *            the value of the Coinbase.TYPE key.
+         * @return the matching Type, or UNKNOWN for types we do not model.
+         */
+        public static Type of(String type) {
+            if (Coinbase.MATCH.equals(type)) {
+                return MATCH;
+            } else if (Coinbase.RECEIVED.equals(type)) {
+                return RECEIVED;
+            } else if (Coinbase.OPEN.equals(type)) {
+                return OPEN;
+            } else if (Coinbase.DONE.equals(type)) {
+                return DONE;
+            } else if (Coinbase.CHANGE.equals(type)) {
+                return CHANGE;
+            } else if (Coinbase.ERROR.equals(type)) {
+                return ERROR;
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Like Type, each side has a code that must never change.
+     */
+    public enum Side {
+        BUY(0), SELL(1), NONE(2);
+
+        private static final Side[] BY_CODE = new Side[3];
+
+        static {
+            for (Side side : values()) {
+                BY_CODE[side.code] = side;
+            }
+        }
+
+        private final int code;
+
+        private Side(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return the side with the code, or NONE if there is none.
+         */
+        public static Side ofCode(int code) {
+            Side side = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+            return side == null ? NONE : side;
+        }
+
+        /**
+         * @param side
+         *            the value of the Coinbase.SIDE key.
+         * @return the matching Side, or NONE if it is missing or unrecognized.
+         */
+        public static Side of(String side) {
+            if (Coinbase.BUY.equals(side)) {
+                return BUY;
+            } else if (Coinbase.SELL.equals(side)) {
+                return SELL;
+            }
+            return NONE;
+        }
+    }
+
+    Type type = Type.UNKNOWN;
+    Side side = Side.NONE;
+    String productId;
+    long sequence;
+    double price;
+    double size;
+    // For CHANGE messages this is the new size.
+    double remainingSize;
+    // Order ids are uuids, kept as their high and low 64 bits. 0 when absent.
+    long orderIdHigh, orderIdLow;
+    long makerOrderIdHigh, makerOrderIdLow;
+    long takerOrderIdHigh, takerOrderIdLow;
+    // When the exchange says it happened, in microseconds since the epoch. 0
+    // when absent.
+    long time;
+    // System.nanoTime() when the message was received and when it had been
+    // decoded, for Latency. 0 for events the client made itself.
+    long receivedNanos;
+    long routedNanos;
+    // Only meaningful for DONE messages.
+    boolean canceled;
+    // Only set for ERROR messages.
+    String message;
+    // Only set for SNAPSHOT events.
+    BookSnapshot snapshot;
+
+    public Type getType() {
+        return type;
+    }
+
+    public Side getSide() {
+        return side;
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public double getSize() {
+        return size;
+    }
+
+    public double getRemainingSize() {
+        return remainingSize;
+    }
+
+    public long getOrderIdHigh() {
+        return orderIdHigh;
+    }
+
+    public long getOrderIdLow() {
+        return orderIdLow;
+    }
+
+    public long getMakerOrderIdHigh() {
+        return makerOrderIdHigh;
+    }
+
+    public long getMakerOrderIdLow() {
+        return makerOrderIdLow;
+    }
+
+    public long getTakerOrderIdHigh() {
+        return takerOrderIdHigh;
+    }
+
+    public long getTakerOrderIdLow() {
+        return takerOrderIdLow;
+    }
+
+    /**
+     * @return the message's time in microseconds since the epoch, or 0 if it
+     *         had none.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the message was received, or 0.
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public BookSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Resets every field so the event can be filled in by the next message.
+     */
+    void clear() {
+        type = Type.UNKNOWN;
+        side = Side.NONE;
+        productId = null;
+        sequence = 0;
+        price = 0;
+        size = 0;
+        remainingSize = 0;
+        orderIdHigh = orderIdLow = 0;
+        makerOrderIdHigh = makerOrderIdLow = 0;
+        takerOrderIdHigh = takerOrderIdLow = 0;
+        time = 0;
+        receivedNanos = routedNanos = 0;
+        canceled = false;
+        message = null;
+        snapshot = null;
+    }
+
+    void copyFrom(MarketEvent other) {
+        type = other.type;
+        side = other.side;
+        productId = other.productId;
+        sequence = other.sequence;
+        price = other.price;
+        size = other.size;
+        remainingSize = other.remainingSize;
+        orderIdHigh = other.orderIdHigh;
+        orderIdLow = other.orderIdLow;
+        makerOrderIdHigh = other.makerOrderIdHigh;
+        makerOrderIdLow = other.makerOrderIdLow;
+        takerOrderIdHigh = other.takerOrderIdHigh;
+        takerOrderIdLow = other.takerOrderIdLow;
+        time = other.time;
+        receivedNanos = other.receivedNanos;
+        routedNanos = other.routedNanos;
+        canceled = other.canceled;
+        message = other.message;
+        snapshot = other.snapshot;
+    }
+
+    /**
+     * @return a private copy of this event that is safe to hold onto after the
+     *         listener callback returns.
+     */
+    public MarketEvent copy() {
+        MarketEvent copy = new MarketEvent();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + type + " " + productId + " #" + sequence + " " + side + " " + size + " @ "
+                + price + "}";
+    }
+}
@@ -0,0 +1,36 @@
+package coinbase;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Receives decoded market events from the CoinbaseClient. Unlike a
+ * WebSocketAdapter, a MarketListener never sees the raw message text: the
+ * client parses each message exactly once and hands every listener the same
+ * MarketEvent.
+ */
+public interface MarketListener {
+
+    /**
+     * Called when the socket has connected to Coinbase.
+     */
+    default void onConnect(Session session) {
+    }
+
+    /**
+     * Called once per feed message. The event is reused by the client, so copy
+     * anything you need before returning.
+     */
+    void onMarketEvent(MarketEvent event);
+
+    /**
+     * Called when the socket has closed.
+     */
+    default void onClose(int statusCode, String reason) {
+    }
+
+    /**
+     * Called when the socket reports an error.
+     */
+    default void onError(Throwable error) {
+    }
+}
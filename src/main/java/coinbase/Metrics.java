@@ -0,0 +1,57 @@
+package coinbase;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the feed's and agents' metrics as MBeans on the platform MBean
+ * server, where JConsole, VisualVM or a JMX exporter can read them. <br/>
+ * <br/>
+ * Each MBean is named domain:type=...,name=..., e.g.
+ * coinbase:type=Feed,name=BTC-USD-1. Failing to register only loses the
+ * metrics, so it is reported rather than thrown.
+ */
+public final class Metrics {
+
+    public static final String DOMAIN = "coinbase";
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the name it was registered under, or null if it couldn't be.
+     */
+    public static ObjectName register(String domain, String type, String name, Object mbean) {
+        try {
+            ObjectName objectName = new ObjectName(domain + ":type=" + type + ",name="
+                    + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            System.err.println("Couldn't register metrics for " + name);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
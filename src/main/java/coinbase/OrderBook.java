@@ -0,0 +1,229 @@
+package coinbase;
+
+/**
+ * A local full (level 3) orderbook for one product, seeded from a
+ * BookSnapshot (or the SNAPSHOT event sent when the client resyncs) and then
+ * kept up to date from the websocket feed's open, match, change and done
+ * messages. Add it to the CoinbaseClient like any other MarketListener. <br/>
+ * <br/>
+ * Prices and sizes are kept as whole numbers of ticks (1e-8) so that levels
+ * can be summed exactly. Every resting order is tracked so that matches and
+ * cancels can be applied by order id, and the aggregate levels (level 2) are
+ * kept alongside. Reading the best bid or ask is O(1), and updating a level
+ * is a binary search. <br/>
+ * <br/>
+ * The book has a single writer: only call seed() and onMarketEvent() from one
+ * thread. The best bid and ask are republished after every event, so
+ * getBestBid() and getBestAsk() may be called from any thread; the deeper
+ * level accessors must be called from the writer's thread.
+ */
+public class OrderBook implements MarketListener {
+
+    // Prices and sizes are stored in units of 1e-8.
+    public static final double TICK = 1e-8;
+    private static final double TICKS_PER_UNIT = 1e8;
+
+    private final String productId;
+
+    private final PriceLevels bids = new PriceLevels(true);
+    private final PriceLevels asks = new PriceLevels(false);
+    private final OrderIndex orders = new OrderIndex();
+
+    // The sequence of the last message applied. Messages at or before it are
+    // already reflected in the book.
+    private long sequence = Sequence.INITIAL;
+    private boolean seeded;
+
+    // Republished after every event for readers on other threads.
+    private volatile double bestBid = Double.NaN;
+    private volatile double bestAsk = Double.NaN;
+
+    /**
+     * @param productId
+     *            the product whose messages this book follows, such as
+     *            Coinbase.BITCOIN_USD. Messages for other products are ignored.
+     */
+    public OrderBook(String productId) {
+        this.productId = productId;
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    public static long toTicks(double value) {
+        return Math.round(value * TICKS_PER_UNIT);
+    }
+
+    public static double fromTicks(long ticks) {
+        return ticks / TICKS_PER_UNIT;
+    }
+
+    /**
+     * Replaces the contents of the book with the snapshot. Feed messages with a
+     * sequence at or before the snapshot's are ignored from then on.
+     */
+    public void seed(BookSnapshot snapshot) {
+        bids.clear();
+        asks.clear();
+        orders.clear();
+        for (int i = 0; i < snapshot.bidPrices.length; i++) {
+            open(snapshot.bidOrderIdHighs[i], snapshot.bidOrderIdLows[i], true,
+                    toTicks(snapshot.bidPrices[i]), toTicks(snapshot.bidSizes[i]));
+        }
+        for (int i = 0; i < snapshot.askPrices.length; i++) {
+            open(snapshot.askOrderIdHighs[i], snapshot.askOrderIdLows[i], false,
+                    toTicks(snapshot.askPrices[i]), toTicks(snapshot.askSizes[i]));
+        }
+        sequence = snapshot.sequence;
+        seeded = true;
+        publishBest();
+    }
+
+    /**
+     * Applies a feed message. Messages that arrive before the book is seeded
+     * are ignored; a SNAPSHOT event from the client's SequenceGuard reseeds it.
+     */
+    @Override
+    public void onMarketEvent(MarketEvent event) {
+        if (event.type == MarketEvent.Type.SNAPSHOT) {
+            seed(event.snapshot);
+            return;
+        }
+        if (!seeded || event.sequence <= sequence
+                || (event.productId != null && !event.productId.equals(productId))) {
+            return;
+        }
+        sequence = event.sequence;
+
+        switch (event.type) {
+        case OPEN:
+            open(event.orderIdHigh, event.orderIdLow, event.side == MarketEvent.Side.BUY,
+                    toTicks(event.price), toTicks(event.remainingSize));
+            break;
+        case MATCH:
+            // The maker's order was resting on the book; the taker's never was.
+            reduce(event.makerOrderIdHigh, event.makerOrderIdLow, toTicks(event.size));
+            break;
+        case CHANGE: {
+            int slot = orders.find(event.orderIdHigh, event.orderIdLow);
+            if (slot >= 0) {
+                reduce(event.orderIdHigh, event.orderIdLow, orders.size(slot)
+                        - toTicks(event.remainingSize));
+            }
+            break;
+        }
+        case DONE:
+            done(event.orderIdHigh, event.orderIdLow);
+            break;
+        default:
+            // Received orders aren't on the book until they are opened.
+            return;
+        }
+        publishBest();
+    }
+
+    private void open(long orderIdHigh, long orderIdLow, boolean bid, long price, long size) {
+        int slot = orders.find(orderIdHigh, orderIdLow);
+        if (slot >= 0) {
+            // Already resting; replace it.
+            done(orderIdHigh, orderIdLow);
+        }
+        orders.put(orderIdHigh, orderIdLow, bid, price, size);
+        (bid ? bids : asks).update(price, size, 1);
+    }
+
+    private void reduce(long orderIdHigh, long orderIdLow, long amount) {
+        int slot = orders.find(orderIdHigh, orderIdLow);
+        if (slot < 0) {
+            return;
+        }
+        orders.setSize(slot, orders.size(slot) - amount);
+        (orders.isBid(slot) ? bids : asks).update(orders.price(slot), -amount, 0);
+    }
+
+    private void done(long orderIdHigh, long orderIdLow) {
+        int slot = orders.find(orderIdHigh, orderIdLow);
+        if (slot < 0) {
+            // Never rested on the book, e.g. a market order.
+            return;
+        }
+        (orders.isBid(slot) ? bids : asks).update(orders.price(slot), -orders.size(slot), -1);
+        orders.remove(slot);
+    }
+
+    private void publishBest() {
+        bestBid = bids.depth() == 0 ? Double.NaN : fromTicks(bids.price(0));
+        bestAsk = asks.depth() == 0 ? Double.NaN : fromTicks(asks.price(0));
+    }
+
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * @return the sequence of the last message reflected in the book.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the highest bid, or NaN if there are no bids.
+     */
+    public double getBestBid() {
+        return bestBid;
+    }
+
+    /**
+     * @return the lowest ask, or NaN if there are no asks.
+     */
+    public double getBestAsk() {
+        return bestAsk;
+    }
+
+    /**
+     * @return the number of orders resting on the book.
+     */
+    public int getOrderCount() {
+        return orders.size();
+    }
+
+    /**
+     * @return the number of price levels on the given side.
+     */
+    public int getDepth(MarketEvent.Side side) {
+        return levels(side).depth();
+    }
+
+    /**
+     * @param level
+     *            0 for the best price, 1 for the next and so on.
+     */
+    public double getLevelPrice(MarketEvent.Side side, int level) {
+        return fromTicks(levels(side).price(level));
+    }
+
+    /**
+     * @return the total size resting at the level.
+     */
+    public double getLevelSize(MarketEvent.Side side, int level) {
+        return fromTicks(levels(side).size(level));
+    }
+
+    /**
+     * @return the number of orders resting at the level.
+     */
+    public int getLevelOrderCount(MarketEvent.Side side, int level) {
+        return levels(side).count(level);
+    }
+
+    private PriceLevels levels(MarketEvent.Side side) {
+        if (side == MarketEvent.Side.BUY) {
+            return bids;
+        } else if (side == MarketEvent.Side.SELL) {
+            return asks;
+        }
+        throw new IllegalArgumentException("A book side must be BUY or SELL: " + side);
+    }
+}
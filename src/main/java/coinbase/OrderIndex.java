@@ -0,0 +1,153 @@
+package coinbase;
+
+/**
+ * The orders resting in an OrderBook, keyed by their uuid. <br/>
+ * <br/>
+ * An open addressing hash table over primitive arrays: no entry objects and
+ * no boxing, just linear probing on the uuid's two halves. Removal shifts the
+ * following entries back instead of leaving tombstones, so lookups stay short
+ * no matter how many orders come and go.
+ */
+class OrderIndex {
+
+    private static final int INITIAL_CAPACITY = 1 << 14;
+
+    // A uuid of 0/0 marks an empty slot.
+    private long[] highs;
+    private long[] lows;
+    private long[] prices;
+    private long[] sizes;
+    private boolean[] bids;
+    private int mask;
+    private int size;
+
+    OrderIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        highs = new long[capacity];
+        lows = new long[capacity];
+        prices = new long[capacity];
+        sizes = new long[capacity];
+        bids = new boolean[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * @return the slot holding the order, or -1 if it is not in the index.
+     */
+    int find(long high, long low) {
+        int slot = hash(high, low) & mask;
+        while (highs[slot] != 0 || lows[slot] != 0) {
+            if (highs[slot] == high && lows[slot] == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the order, replacing it if it is already present.
+     */
+    void put(long high, long low, boolean bid, long price, long orderSize) {
+        if (high == 0 && low == 0) {
+            return;
+        }
+        if ((size + 1) * 2 > highs.length) {
+            grow();
+        }
+        int slot = hash(high, low) & mask;
+        while (highs[slot] != 0 || lows[slot] != 0) {
+            if (highs[slot] == high && lows[slot] == low) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (highs[slot] == 0 && lows[slot] == 0) {
+            size++;
+        }
+        highs[slot] = high;
+        lows[slot] = low;
+        bids[slot] = bid;
+        prices[slot] = price;
+        sizes[slot] = orderSize;
+    }
+
+    /**
+     * Removes the order in the given slot, as returned by find().
+     */
+    void remove(int slot) {
+        highs[slot] = 0;
+        lows[slot] = 0;
+        size--;
+        // Shift back any entries that probed past the hole.
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (highs[next] != 0 || lows[next] != 0) {
+            int home = hash(highs[next], lows[next]) & mask;
+            // Move the entry if its home is not between the hole and it.
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                highs[hole] = highs[next];
+                lows[hole] = lows[next];
+                bids[hole] = bids[next];
+                prices[hole] = prices[next];
+                sizes[hole] = sizes[next];
+                highs[next] = 0;
+                lows[next] = 0;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        long[] oldPrices = prices;
+        long[] oldSizes = sizes;
+        boolean[] oldBids = bids;
+        allocate(oldHighs.length * 2);
+        for (int i = 0; i < oldHighs.length; i++) {
+            if (oldHighs[i] != 0 || oldLows[i] != 0) {
+                put(oldHighs[i], oldLows[i], oldBids[i], oldPrices[i], oldSizes[i]);
+            }
+        }
+    }
+
+    void clear() {
+        if (size > 0) {
+            allocate(INITIAL_CAPACITY);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isBid(int slot) {
+        return bids[slot];
+    }
+
+    long price(int slot) {
+        return prices[slot];
+    }
+
+    long size(int slot) {
+        return sizes[slot];
+    }
+
+    void setSize(int slot, long orderSize) {
+        sizes[slot] = orderSize;
+    }
+}
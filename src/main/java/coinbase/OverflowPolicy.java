@@ -0,0 +1,26 @@
+package coinbase;
+
+/**
+ * What a Mailbox does with a message when its listener has fallen so far
+ * behind that the mailbox is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait for the listener to make room. Nothing is lost, but the socket
+     * thread is held up for as long as the listener is.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest waiting message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop every waiting message, so the listener skips straight to the newest
+     * one. Suits listeners that only care about the latest state, e.g. a
+     * chart.
+     */
+    CONFLATE;
+}
@@ -0,0 +1,121 @@
+package coinbase;
+
+import java.util.Arrays;
+
+/**
+ * One side of an OrderBook: the aggregate size and order count at each price,
+ * kept in sorted primitive arrays. <br/>
+ * <br/>
+ * Levels are sorted so that the best price is always the last element, which
+ * makes reading the best level O(1). Finding a level is a binary search, and
+ * since most activity happens near the top of the book, inserting or removing
+ * a level usually shifts only a handful of elements.
+ */
+class PriceLevels {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // true for bids (best is the highest price), false for asks (best is the
+    // lowest price).
+    private final boolean bids;
+
+    // Sort keys, ascending. The price for bids, the negated price for asks, so
+    // the best level sorts last either way.
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int length;
+
+    PriceLevels(boolean bids) {
+        this.bids = bids;
+    }
+
+    /**
+     * Adjusts the level at the given price, creating it if needed and removing
+     * it once it is empty.
+     *
+     * @param price
+     *            the level's price in ticks.
+     * @param sizeDelta
+     *            how much to add to the level's size, in ticks.
+     * @param countDelta
+     *            how many orders to add to the level.
+     */
+    void update(long price, long sizeDelta, int countDelta) {
+        long key = bids ? price : -price;
+        int index = Arrays.binarySearch(keys, 0, length, key);
+        if (index < 0) {
+            if (countDelta <= 0) {
+                // Nothing to take away from.
+                return;
+            }
+            index = -index - 1;
+            insert(index, key);
+        }
+        sizes[index] += sizeDelta;
+        counts[index] += countDelta;
+        if (counts[index] <= 0) {
+            remove(index);
+        }
+    }
+
+    private void insert(int index, long key) {
+        if (length == keys.length) {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        int moved = length - index;
+        System.arraycopy(keys, index, keys, index + 1, moved);
+        System.arraycopy(sizes, index, sizes, index + 1, moved);
+        System.arraycopy(counts, index, counts, index + 1, moved);
+        keys[index] = key;
+        sizes[index] = 0;
+        counts[index] = 0;
+        length++;
+    }
+
+    private void remove(int index) {
+        int moved = length - index - 1;
+        System.arraycopy(keys, index + 1, keys, index, moved);
+        System.arraycopy(sizes, index + 1, sizes, index, moved);
+        System.arraycopy(counts, index + 1, counts, index, moved);
+        length--;
+    }
+
+    void clear() {
+        length = 0;
+    }
+
+    /**
+     * @return the number of price levels.
+     */
+    int depth() {
+        return length;
+    }
+
+    /**
+     * @param level
+     *            0 is the best level, 1 the next best and so on.
+     * @return the level's price in ticks.
+     */
+    long price(int level) {
+        long key = keys[length - 1 - level];
+        return bids ? key : -key;
+    }
+
+    /**
+     * @return the level's total size in ticks.
+     */
+    long size(int level) {
+        return sizes[length - 1 - level];
+    }
+
+    /**
+     * @return the number of orders resting at the level.
+     */
+    int count(int level) {
+        return counts[length - 1 - level];
+    }
+}
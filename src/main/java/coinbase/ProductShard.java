@@ -0,0 +1,153 @@
+package coinbase;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import coinbase.ListenerRegistry.Snapshot;
+
+/**
+ * Everything the CoinbaseClient keeps for one product: the listeners that
+ * follow it, the guard that checks its sequence numbers and, in ring mode,
+ * the ring its listeners consume. <br/>
+ * <br/>
+ * The socket thread routes each message to its product's shard by
+ * product_id. Since sequence numbers, books and windows are all per product,
+ * nothing in a shard is ever shared with another shard: in ring mode each of a
+ * shard's listeners runs on a thread that only ever sees that product, so
+ * adding markets adds threads rather than contention.
+ */
+class ProductShard {
+
+    private final String productId;
+
+    private final ListenerRegistry listeners = new ListenerRegistry();
+
+    // When not null, listeners run on their own threads and the socket thread
+    // only publishes into this ring.
+    private final RingBuffer ring;
+
+    private final SequenceGuard guard;
+
+    ProductShard(String productId, RingBuffer ring) {
+        this.productId = productId;
+        this.ring = ring;
+        this.guard = new SequenceGuard(this::dispatch,
+                () -> CoinbaseClient.getOrderbookSnapshot(productId));
+    }
+
+    String getProductId() {
+        return productId;
+    }
+
+    SequenceGuard getGuard() {
+        return guard;
+    }
+
+    boolean hasListeners() {
+        return listeners.get().listeners.length > 0;
+    }
+
+    /**
+     * @return false if the listener was already added.
+     */
+    boolean add(MarketListener listener) {
+        ListenerMetrics metrics = new ListenerMetrics(productId, listener);
+        EventProcessor processor = ring == null ? null : ring.addConsumer(listener, metrics);
+        metrics.setProcessor(ring, processor);
+        if (!listeners.add(listener, processor, metrics)) {
+            if (processor != null) {
+                ring.removeConsumer(processor);
+            }
+            return false;
+        }
+        metrics.objectName = Metrics.register(Metrics.DOMAIN, "Listener", productId + " "
+                + metrics.getListener(), metrics);
+        return true;
+    }
+
+    /**
+     * @return false if the listener was never added.
+     */
+    boolean remove(MarketListener listener) {
+        Snapshot current = listeners.get();
+        int index = current.indexOf(listener);
+        if (index < 0) {
+            return false;
+        }
+        Metrics.unregister(current.metrics[index].objectName);
+        EventProcessor processor = listeners.remove(listener);
+        if (processor != null) {
+            ring.removeConsumer(processor);
+        }
+        return true;
+    }
+
+    /**
+     * @return the processor running the listener, or null if it is called
+     *         directly or isn't in this shard.
+     */
+    EventProcessor getProcessor(MarketListener listener) {
+        Snapshot current = listeners.get();
+        int index = current.indexOf(listener);
+        return index < 0 ? null : current.processors[index];
+    }
+
+    boolean contains(MarketListener listener) {
+        return listeners.get().indexOf(listener) >= 0;
+    }
+
+    ListenerMetrics[] getListenerMetrics() {
+        return listeners.get().metrics;
+    }
+
+    long getLag(EventProcessor processor) {
+        return ring.getLag(processor);
+    }
+
+    /**
+     * Called on the socket thread with each of this product's messages.
+     */
+    void accept(MarketEvent event) {
+        guard.accept(event);
+    }
+
+    /**
+     * Hands an in-sequence event to the listeners.
+     */
+    private void dispatch(MarketEvent event) {
+        if (ring != null) {
+            // The listeners pick it up on their own threads.
+            ring.publish(event);
+        } else {
+            long start = System.nanoTime();
+            if (event.routedNanos != 0) {
+                Latency.QUEUE.record(start - event.routedNanos);
+            }
+            Snapshot current = listeners.get();
+            for (int i = 0; i < current.listeners.length; i++) {
+                current.listeners[i].onMarketEvent(event);
+                long end = System.nanoTime();
+                Latency.DISPATCH.record(end - start);
+                current.metrics[i].record(end - start);
+                start = end;
+            }
+        }
+    }
+
+    void onConnect(Session session) {
+        for (MarketListener listener : listeners.get().listeners) {
+            listener.onConnect(session);
+        }
+    }
+
+    void onClose(int statusCode, String reason) {
+        for (MarketListener listener : listeners.get().listeners) {
+            listener.onClose(statusCode, reason);
+        }
+    }
+
+    void onError(Throwable error) {
+        for (MarketListener listener : listeners.get().listeners) {
+            listener.onError(error);
+        }
+    }
+}
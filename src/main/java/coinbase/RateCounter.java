@@ -0,0 +1,52 @@
+package coinbase;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A striped counter that also knows how fast it is going. <br/>
+ * <br/>
+ * Counting is a LongAdder increment, so many threads can count at once
+ * without contending. getRate() is the average over the time since the rate
+ * was last worked out, which is at least a second, so polling it (e.g. from a
+ * JMX console) gives a steady per-second figure.
+ */
+public class RateCounter {
+
+    private static final long MIN_INTERVAL_NANOS = 1000000000L;
+
+    private final LongAdder count = new LongAdder();
+
+    private long lastNanos = System.nanoTime();
+    private long lastCount;
+    private double rate;
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    /**
+     * @return the total counted.
+     */
+    public long get() {
+        return count.sum();
+    }
+
+    /**
+     * @return the number counted per second, recently.
+     */
+    public synchronized double getRate() {
+        long now = System.nanoTime();
+        long elapsed = now - lastNanos;
+        if (elapsed >= MIN_INTERVAL_NANOS) {
+            long current = count.sum();
+            rate = (current - lastCount) * 1e9 / elapsed;
+            lastCount = current;
+            lastNanos = now;
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,67 @@
+package coinbase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket: permits refill at a steady rate up to a burst size, and
+ * each request takes one. <br/>
+ * <br/>
+ * reserve() never blocks. It takes a permit straight away, borrowing against
+ * future refills if the bucket is empty, and says how long the caller must
+ * wait before using it. That lets many requests be scheduled at once while
+ * still going out no faster than the rate.
+ */
+public class RateLimiter {
+
+    private final double permitsPerNano;
+    private final double burst;
+
+    // May go negative while permits are borrowed.
+    private double tokens;
+    private long lastNanos = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond
+     *            the steady rate.
+     * @param burst
+     *            how many permits may be taken at once after a quiet spell.
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Takes a permit.
+     *
+     * @return how many nanoseconds to wait before using it.
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastNanos) * permitsPerNano);
+        lastNanos = now;
+        tokens--;
+        return tokens >= 0 ? 0 : (long) (-tokens / permitsPerNano);
+    }
+
+    /**
+     * Hands back permits that were reserved but won't be used, so later
+     * requests don't wait for them.
+     */
+    public synchronized void refund(int permits) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastNanos) * permitsPerNano + permits);
+        lastNanos = now;
+    }
+
+    /**
+     * Takes a permit, waiting until it may be used.
+     */
+    public void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package coinbase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a recorded Journal through a CoinbaseClient as if the messages were
+ * arriving on its socket, so agents can be backtested without a network.
+ * <br/>
+ * <br/>
+ * Every message goes through the same receive path as a live one: raw
+ * WebSocketAdapters, decoding, SequenceGuards, rings and MarketListeners. The
+ * market listeners are fed straight from the journal's mapped segments with
+ * no String made per message. <br/>
+ * <br/>
+ * A TickFile can be replayed the same way, skipping decoding as well; only
+ * the MarketListeners see its events. <br/>
+ * <br/>
+ * Messages can be replayed as fast as possible or at a multiple of the speed
+ * they were recorded at. There is nothing to resync from in a recording, so
+ * replaying turns off the client's resync on gaps; gaps are still counted.
+ * Orderbook snapshots are not recorded, so an OrderBook is never seeded by a
+ * replay. <br/>
+ * <br/>
+ * The client must not also be connected to the socket.
+ */
+public class Replay {
+
+    // Sleep when further ahead than this, otherwise spin.
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final CoinbaseClient client;
+    private final Path path;
+
+    // 0 replays as fast as possible.
+    private double speed;
+
+    private long messages;
+    private long elapsedNanos;
+
+    /**
+     * @param path
+     *            the directory a Journal wrote to, or a TickFile.
+     */
+    public Replay(CoinbaseClient client, Path path) {
+        this.client = client;
+        this.path = path;
+    }
+
+    /**
+     * @param speed
+     *            how many times faster than recorded to replay, e.g. 1 for real
+     *            time or 100. 0, the default, replays as fast as possible.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed can't be negative: " + speed);
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the whole journal or tick file on the calling thread.
+     *
+     * @return how many messages were replayed.
+     */
+    public long run() throws IOException {
+        client.setResyncOnGap(false);
+        long startNanos = System.nanoTime();
+        long count = Files.isDirectory(path) ? runJournal(startNanos) : runTicks(startNanos);
+        elapsedNanos = System.nanoTime() - startNanos;
+        messages = count;
+        return count;
+    }
+
+    private long runJournal(long startNanos) throws IOException {
+        ByteSequence message = new ByteSequence();
+        long count = 0;
+        long firstReceived = 0;
+        try (JournalReader reader = new JournalReader(path)) {
+            while (reader.next()) {
+                if (speed > 0) {
+                    if (count == 0) {
+                        firstReceived = reader.getReceivedNanos();
+                    }
+                    waitUntil(due(startNanos, firstReceived, reader.getReceivedNanos()));
+                }
+                client.receive(message.wrap(reader.getPayload()));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long runTicks(long startNanos) throws IOException {
+        MarketEvent event = new MarketEvent();
+        long count = 0;
+        long firstReceived = 0;
+        try (TickFile.Reader reader = new TickFile.Reader(path)) {
+            BinaryTick tick;
+            while ((tick = reader.next()) != null) {
+                if (speed > 0) {
+                    if (count == 0) {
+                        firstReceived = tick.getReceivedNanos();
+                    }
+                    waitUntil(due(startNanos, firstReceived, tick.getReceivedNanos()));
+                }
+                tick.decode(event);
+                client.receive(event);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long due(long startNanos, long firstReceived, long received) {
+        return startNanos + (long) ((received - firstReceived) / speed);
+    }
+
+    private static void waitUntil(long due) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(wait - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return how many messages the last run() replayed.
+     */
+    public long getMessageCount() {
+        return messages;
+    }
+
+    /**
+     * @return how long the last run() took.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the throughput of the last run(). In ring mode this is how fast
+     *         messages were published; the listeners may still be catching up.
+     */
+    public double getMessagesPerSecond() {
+        return elapsedNanos == 0 ? 0 : messages * 1e9 / elapsedNanos;
+    }
+}
@@ -5,5 +5,16 @@ package coinbase;
  * orderbook
  */
 public enum ResponseDetail {
-    ONLYBEST, TOP50, FULLORDER
+    ONLYBEST(1), TOP50(2), FULLORDER(3);
+
+    // The value of the API's level parameter.
+    private final int level;
+
+    private ResponseDetail(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
 }
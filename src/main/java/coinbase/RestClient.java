@@ -0,0 +1,277 @@
+package coinbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+
+/**
+ * A long lived HTTP client for the REST API. <br/>
+ * <br/>
+ * Starting an HttpClient spins up a thread pool and every new connection
+ * costs a TLS handshake, so instead of doing both for every request this
+ * client is started once and keeps its connections alive between requests.
+ * At most maxConnections requests are on the wire at once; any more wait in
+ * the client's queue until a connection frees up. <br/>
+ * <br/>
+ * The threads are daemons, so an application that never calls stop() can
+ * still exit. stop() fails any requests still in flight; stopWhenIdle() lets
+ * them finish first.
+ */
+public class RestClient {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    // How long a single request may take, queueing included.
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Parses a response body a chunk at a time, as it arrives, instead of
+     * waiting for the whole body. A new parser is needed for each request.
+     */
+    public interface BodyParser<T> {
+        /**
+         * Called on an HTTP thread with each chunk of the body. The chunk is
+         * only valid during the call. Throwing aborts the request.
+         */
+        void onContent(ByteBuffer chunk) throws Exception;
+
+        /**
+         * Called once the whole body has been passed to onContent().
+         *
+         * @return the parsed body.
+         */
+        T finish() throws Exception;
+    }
+
+    // A full orderbook is several megabytes; the listener's default cap is 2.
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+    private final HttpClient httpClient;
+    private final long timeoutMillis;
+
+    // Requests sent and not yet answered.
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean stopWhenIdle;
+
+    public RestClient() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxConnections
+     *            how many requests may be in flight at once.
+     * @param timeoutMillis
+     *            how long to wait for any one response.
+     */
+    public RestClient(int maxConnections, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+
+        // Low Security needed
+        httpClient = new HttpClient(new SslContextFactory(true));
+        httpClient.setMaxConnectionsPerDestination(maxConnections);
+
+        QueuedThreadPool threads = new QueuedThreadPool();
+        threads.setName("RestClient");
+        threads.setDaemon(true);
+        httpClient.setExecutor(threads);
+        httpClient.setScheduler(new ScheduledExecutorScheduler("RestClient-scheduler", true));
+    }
+
+    /**
+     * Starts the client if it isn't already running. Called by every request,
+     * so there is normally no need to call it directly.
+     */
+    public synchronized void start() throws Exception {
+        if (!httpClient.isStarted()) {
+            httpClient.start();
+        }
+    }
+
+    /**
+     * Stops the client and closes its connections. The next request starts it
+     * again.
+     */
+    public synchronized void stop() throws Exception {
+        httpClient.stop();
+    }
+
+    /**
+     * Stops the client once every request in flight has been answered, and
+     * again whenever it falls idle after that, so requests already made are
+     * never cut off.
+     */
+    public void stopWhenIdle() {
+        stopWhenIdle = true;
+        stopIfIdle();
+    }
+
+    private void stopIfIdle() {
+        if (!stopWhenIdle || pending.get() > 0) {
+            return;
+        }
+        // Not on one of the client's own threads, which stopping waits for.
+        CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                if (pending.get() > 0) {
+                    return;
+                }
+                try {
+                    httpClient.stop();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    public boolean isStarted() {
+        return httpClient.isStarted();
+    }
+
+    /**
+     * @return how many requests have been made and not yet answered.
+     */
+    public int getPendingRequests() {
+        return pending.get();
+    }
+
+    /**
+     * Starts the client if need be and counts a request in flight until the
+     * returned future completes. The future has already failed if the client
+     * couldn't start.
+     */
+    private <T> CompletableFuture<T> begin() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        synchronized (this) {
+            try {
+                start();
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+            pending.incrementAndGet();
+        }
+        future.whenComplete((result, error) -> {
+            if (pending.decrementAndGet() == 0) {
+                stopIfIdle();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Issues a get request without waiting for the response.
+     *
+     * @return the body of the response. Completes exceptionally if the request
+     *         fails, times out or the server doesn't answer with a 2xx status.
+     */
+    public CompletableFuture<String> getAsync(String url) {
+        CompletableFuture<String> future = begin();
+        if (future.isDone()) {
+            return future;
+        }
+
+        httpClient.newRequest(url).timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+                    @Override
+                    public void onComplete(Result result) {
+                        if (result.isFailed()) {
+                            future.completeExceptionally(result.getFailure());
+                            return;
+                        }
+                        int status = result.getResponse().getStatus();
+                        if (status / 100 != 2) {
+                            future.completeExceptionally(new IOException("GET " + url
+                                    + " returned " + status + ": " + getContentAsString()));
+                            return;
+                        }
+                        future.complete(getContentAsString());
+                    }
+                });
+        return future;
+    }
+
+    /**
+     * Issues a get request without waiting for the response, passing the body
+     * to the parser as it arrives.
+     *
+     * @return what the parser made of the body. Completes exceptionally if the
+     *         request fails, times out, the parser throws or the server
+     *         doesn't answer with a 2xx status.
+     */
+    public <T> CompletableFuture<T> getAsync(String url, BodyParser<T> parser) {
+        CompletableFuture<T> future = begin();
+        if (future.isDone()) {
+            return future;
+        }
+
+        httpClient.newRequest(url).timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .send(new Response.Listener.Adapter() {
+                    // Error bodies are small, so keep them for the message.
+                    private final StringBuilder error = new StringBuilder();
+
+                    @Override
+                    public void onContent(Response response, ByteBuffer content) {
+                        if (response.getStatus() / 100 != 2) {
+                            error.append(StandardCharsets.UTF_8.decode(content));
+                            return;
+                        }
+                        try {
+                            parser.onContent(content);
+                        } catch (Exception e) {
+                            response.abort(e);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(Result result) {
+                        if (result.isFailed()) {
+                            future.completeExceptionally(result.getFailure());
+                            return;
+                        }
+                        int status = result.getResponse().getStatus();
+                        if (status / 100 != 2) {
+                            future.completeExceptionally(new IOException("GET " + url
+                                    + " returned " + status + ": " + error));
+                            return;
+                        }
+                        try {
+                            future.complete(parser.finish());
+                        } catch (Exception e) {
+                            future.completeExceptionally(e);
+                        }
+                    }
+                });
+        return future;
+    }
+
+    /**
+     * Issues a get request and waits for the response.
+     *
+     * @return the body of the response.
+     */
+    public String get(String url) throws Exception {
+        try {
+            return getAsync(url).get();
+        } catch (ExecutionException e) {
+            // Rethrow what actually went wrong.
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
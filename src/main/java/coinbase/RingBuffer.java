@@ -0,0 +1,146 @@
+package coinbase;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated ring of MarketEvents which hands messages from the socket
+ * thread to consumers running on their own threads. <br/>
+ * <br/>
+ * There is exactly one producer: publish() copies the event into the next
+ * slot and advances the cursor. Each consumer is an EventProcessor with its own
+ * Sequence, so consumers move at their own pace and their lag can be measured
+ * independently. The producer never overwrites a slot that the slowest
+ * consumer has not finished with; if the ring fills up, publish() waits.
+ */
+public class RingBuffer {
+
+    private final MarketEvent[] entries;
+    private final int mask;
+
+    // The last sequence the producer has published.
+    private final Sequence cursor = new Sequence();
+
+    // The sequences of all the consumers. Replaced, never modified, when
+    // consumers come and go.
+    private volatile Sequence[] gatingSequences = new Sequence[0];
+
+    // Cached minimum of the gating sequences, so the producer doesn't read
+    // every consumer's sequence on every publish.
+    private long cachedGatingSequence = Sequence.INITIAL;
+
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * @param size
+     *            the number of slots. Must be a power of two.
+     * @param waitStrategy
+     *            how consumers wait for new events.
+     */
+    public RingBuffer(int size, WaitStrategy waitStrategy) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two: " + size);
+        }
+        this.entries = new MarketEvent[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new MarketEvent();
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int getSize() {
+        return entries.length;
+    }
+
+    /**
+     * Copies the event into the ring and makes it visible to consumers. Must
+     * only be called from the producer thread.
+     */
+    public void publish(MarketEvent event) {
+        long next = cursor.get() + 1;
+
+        // Wait for the slowest consumer to free the slot we are about to
+        // reuse.
+        long wrapPoint = next - entries.length;
+        if (wrapPoint > cachedGatingSequence) {
+            long minimum;
+            while (wrapPoint > (minimum = Sequence.minimum(gatingSequences, next - 1))) {
+                LockSupport.parkNanos(1);
+            }
+            cachedGatingSequence = minimum;
+        }
+
+        entries[(int) next & mask].copyFrom(event);
+        waitStrategy.publish(cursor, next);
+    }
+
+    /**
+     * @return the event stored at the given sequence. Only valid until the
+     *         producer wraps around to it again.
+     */
+    public MarketEvent get(long sequence) {
+        return entries[(int) sequence & mask];
+    }
+
+    public Sequence getCursor() {
+        return cursor;
+    }
+
+    WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Starts a consumer which hands every event published from now on to the
+     * given listener on its own thread.
+     */
+    public EventProcessor addConsumer(MarketListener listener) {
+        return addConsumer(listener, null);
+    }
+
+    /**
+     * @param metrics
+     *            counts the listener's events, or null.
+     */
+    EventProcessor addConsumer(MarketListener listener, ListenerMetrics metrics) {
+        EventProcessor processor = new EventProcessor(this, listener, metrics);
+        synchronized (this) {
+            // Start from the current cursor so the new consumer neither
+            // blocks the producer on old slots nor sees a partial history.
+            processor.getSequence().set(cursor.get());
+            Sequence[] sequences = Arrays.copyOf(gatingSequences, gatingSequences.length + 1);
+            sequences[sequences.length - 1] = processor.getSequence();
+            gatingSequences = sequences;
+        }
+        processor.start();
+        return processor;
+    }
+
+    /**
+     * Halts the consumer, waiting for it to finish the event it is handling,
+     * and stops it from holding back the producer.
+     */
+    public void removeConsumer(EventProcessor processor) {
+        processor.halt();
+        synchronized (this) {
+            Sequence[] sequences = gatingSequences;
+            for (int i = 0; i < sequences.length; i++) {
+                if (sequences[i] == processor.getSequence()) {
+                    Sequence[] remaining = new Sequence[sequences.length - 1];
+                    System.arraycopy(sequences, 0, remaining, 0, i);
+                    System.arraycopy(sequences, i + 1, remaining, i, remaining.length - i);
+                    gatingSequences = remaining;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many published events the consumer has yet to process.
+     */
+    public long getLag(EventProcessor processor) {
+        return cursor.get() - processor.getSequence().get();
+    }
+}
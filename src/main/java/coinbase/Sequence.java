@@ -0,0 +1,73 @@
+package coinbase;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A position in a RingBuffer, written by one thread and read by others. <br/>
+ * <br/>
+ * The value is padded on both sides so that the producer's cursor and each
+ * consumer's sequence live on their own cache lines and don't slow each other
+ * down through false sharing.
+ */
+public class Sequence {
+
+    // Means nothing has been published or consumed yet.
+    public static final long INITIAL = -1;
+
+    private static final AtomicLongFieldUpdater<Sequence> UPDATER = AtomicLongFieldUpdater
+            .newUpdater(Sequence.class, "value");
+
+    // Padding. Never read.
+    protected long p1, p2, p3, p4, p5, p6, p7;
+
+    private volatile long value;
+
+    // Padding. Never read.
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    public Sequence() {
+        this(INITIAL);
+    }
+
+    public Sequence(long initial) {
+        UPDATER.lazySet(this, initial);
+    }
+
+    public long get() {
+        return value;
+    }
+
+    /**
+     * Publishes a new value. Writes made before this call are visible to any
+     * thread that reads the new value, but unlike a volatile write we don't
+     * wait for the store to drain.
+     */
+    public void set(long value) {
+        UPDATER.lazySet(this, value);
+    }
+
+    /**
+     * Publishes a new value with a full fence, so that no later read by this
+     * thread can happen before other threads can see the new value.
+     */
+    public void setVolatile(long value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the smallest value among the given sequences, or defaultValue if
+     *         there are none.
+     */
+    static long minimum(Sequence[] sequences, long defaultValue) {
+        long minimum = defaultValue;
+        for (Sequence sequence : sequences) {
+            minimum = Math.min(minimum, sequence.get());
+        }
+        return minimum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(value);
+    }
+}
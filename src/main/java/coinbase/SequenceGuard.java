@@ -0,0 +1,308 @@
+package coinbase;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits in the CoinbaseClient's receive path and makes sure listeners see an
+ * unbroken sequence of messages. <br/>
+ * <br/>
+ * While the feed is healthy every message is passed straight through. When a
+ * sequence number is skipped the guard stops passing messages on and buffers
+ * them instead, fetches a fresh orderbook snapshot on a background thread,
+ * and once it arrives hands listeners a SNAPSHOT event followed by the
+ * buffered messages that came after it. From then on the stream is live
+ * again, without restarting anything. <br/>
+ * <br/>
+ * The buffer holds at most maxBuffered messages, so an outage of the REST API
+ * can't grow the heap without bound. When it overflows the buffered messages
+ * are dropped and buffering starts again from the latest one; the next
+ * snapshot then has to reach that message instead, and an older one is
+ * fetched again. <br/>
+ * <br/>
+ * accept() must only be called from one thread (the socket's).
+ */
+public class SequenceGuard {
+
+    private enum State {
+        LIVE, RESYNCING
+    }
+
+    // How long to wait before asking for another snapshot after a failure.
+    private static final long RETRY_MILLIS = 1000;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    public static final int DEFAULT_MAX_BUFFERED = 1 << 16;
+
+    // Where messages go once we know they are in order.
+    private final MarketListener downstream;
+
+    // Fetches the snapshot we resync from.
+    private final Callable<BookSnapshot> snapshotSource;
+
+    private final ExecutorService fetcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SequenceGuard-fetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private State state = State.LIVE;
+    private long lastSequence = Sequence.INITIAL;
+
+    // Messages received while resyncing. Reused between resyncs.
+    private MarketEvent[] buffer = new MarketEvent[0];
+    private int buffered;
+    private volatile int maxBuffered = DEFAULT_MAX_BUFFERED;
+
+    // Set by the fetcher thread, picked up by the socket thread.
+    private volatile BookSnapshot fetchedSnapshot;
+    // Cleared by the fetcher thread if the fetch fails.
+    private volatile boolean fetching;
+
+    // Set by requestResync().
+    private volatile boolean requested;
+
+    // When false, gaps are counted but the stream carries on regardless.
+    private volatile boolean resyncOnGap = true;
+
+    // Used to hand the snapshot to listeners.
+    private final MarketEvent snapshotEvent = new MarketEvent();
+
+    private long resyncStartNanos;
+
+    private final AtomicLong gaps = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile long lastResyncNanos;
+    private final AtomicLong totalResyncNanos = new AtomicLong();
+
+    /**
+     * @param downstream
+     *            receives the messages in order.
+     * @param snapshotSource
+     *            fetches a fresh full orderbook, such as
+     *            CoinbaseClient::getOrderbookSnapshot.
+     */
+    public SequenceGuard(MarketListener downstream, Callable<BookSnapshot> snapshotSource) {
+        this.downstream = downstream;
+        this.snapshotSource = snapshotSource;
+    }
+
+    /**
+     * Passes the message on if it is the next in sequence, otherwise buffers it
+     * until the guard has resynced.
+     */
+    public void accept(MarketEvent event) {
+        long sequence = event.sequence;
+        if (sequence == 0) {
+            // Errors and the like aren't sequenced.
+            downstream.onMarketEvent(event);
+            return;
+        }
+
+        if (state == State.RESYNCING) {
+            buffer(event);
+            tryFinishResync();
+            return;
+        }
+
+        if (requested) {
+            requested = false;
+            startResync();
+            buffer(event);
+            return;
+        }
+
+        if (lastSequence != Sequence.INITIAL) {
+            if (sequence <= lastSequence) {
+                // Already seen.
+                return;
+            }
+            if (sequence != lastSequence + 1) {
+                gaps.incrementAndGet();
+                if (resyncOnGap) {
+                    startResync();
+                    buffer(event);
+                    return;
+                }
+            }
+        }
+        lastSequence = sequence;
+        downstream.onMarketEvent(event);
+    }
+
+    /**
+     * Starts a resync even though no gap was seen, e.g. to seed an OrderBook
+     * after connecting. May be called from any thread; it takes effect on the
+     * next message.
+     */
+    public void requestResync() {
+        requested = true;
+    }
+
+    /**
+     * Whether to resync when a gap is seen, which is the default. Turn it off
+     * where there is nothing to resync from, such as when replaying a
+     * recording; gaps are then still counted but messages keep flowing.
+     */
+    public void setResyncOnGap(boolean resyncOnGap) {
+        this.resyncOnGap = resyncOnGap;
+    }
+
+    /**
+     * Sets the most messages kept while resyncing. Takes effect on the next
+     * message buffered.
+     */
+    public void setMaxBuffered(int maxBuffered) {
+        if (maxBuffered < 1) {
+            throw new IllegalArgumentException("maxBuffered must be positive: " + maxBuffered);
+        }
+        this.maxBuffered = maxBuffered;
+    }
+
+    private void startResync() {
+        state = State.RESYNCING;
+        resyncStartNanos = System.nanoTime();
+        buffered = 0;
+        fetch(0);
+    }
+
+    private void fetch(long delayMillis) {
+        fetching = true;
+        fetchedSnapshot = null;
+        fetcher.execute(() -> {
+            try {
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                fetchedSnapshot = snapshotSource.call();
+            } catch (Exception e) {
+                e.printStackTrace();
+                fetching = false;
+            }
+        });
+    }
+
+    private void buffer(MarketEvent event) {
+        int max = maxBuffered;
+        if (buffered >= max) {
+            // Too long without a snapshot. Start again from this message.
+            overflows.incrementAndGet();
+            System.err.println("Dropped " + buffered + " messages buffered while resyncing");
+            buffered = 0;
+        }
+        if (buffered == buffer.length) {
+            int capacity = Math.min(max, Math.max(INITIAL_BUFFER_SIZE, buffer.length * 2));
+            buffer = Arrays.copyOf(buffer, capacity);
+            for (int i = buffered; i < capacity; i++) {
+                buffer[i] = new MarketEvent();
+            }
+        }
+        buffer[buffered++].copyFrom(event);
+    }
+
+    private void tryFinishResync() {
+        BookSnapshot snapshot = fetchedSnapshot;
+        if (snapshot == null) {
+            if (!fetching) {
+                // The last fetch failed.
+                fetch(RETRY_MILLIS);
+            }
+            return;
+        }
+        fetchedSnapshot = null;
+
+        // The snapshot must reach at least the message before the first one
+        // we buffered, or there would still be a hole.
+        if (snapshot.sequence < buffer[0].sequence - 1) {
+            fetch(0);
+            return;
+        }
+
+        snapshotEvent.clear();
+        snapshotEvent.type = MarketEvent.Type.SNAPSHOT;
+        snapshotEvent.sequence = snapshot.sequence;
+        snapshotEvent.snapshot = snapshot;
+        downstream.onMarketEvent(snapshotEvent);
+        snapshotEvent.snapshot = null;
+
+        long duration = System.nanoTime() - resyncStartNanos;
+        lastResyncNanos = duration;
+        totalResyncNanos.addAndGet(duration);
+        resyncs.incrementAndGet();
+
+        // Catch up on what arrived while we waited.
+        lastSequence = snapshot.sequence;
+        state = State.LIVE;
+        int replay = buffered;
+        buffered = 0;
+        for (int i = 0; i < replay; i++) {
+            if (state == State.RESYNCING) {
+                // Another gap inside the buffer; keep the rest for the next
+                // snapshot.
+                buffer(buffer[i]);
+            } else {
+                accept(buffer[i]);
+            }
+        }
+    }
+
+    /**
+     * @return how many times a skipped sequence number has been detected.
+     */
+    public long getGapCount() {
+        return gaps.get();
+    }
+
+    /**
+     * @return how many times the guard has resynced from a snapshot.
+     */
+    public long getResyncCount() {
+        return resyncs.get();
+    }
+
+    /**
+     * @return how many times the resync buffer has overflowed and been
+     *         dropped.
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    /**
+     * @return how many messages are waiting for the resync to finish.
+     */
+    public int getBufferedCount() {
+        return buffered;
+    }
+
+    /**
+     * @return how long the most recent resync took, from detecting the gap to
+     *         being live again.
+     */
+    public long getLastResyncNanos() {
+        return lastResyncNanos;
+    }
+
+    /**
+     * @return the total time spent resyncing.
+     */
+    public long getTotalResyncNanos() {
+        return totalResyncNanos.get();
+    }
+
+    /**
+     * @return the sequence of the last message passed on.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public boolean isResyncing() {
+        return state == State.RESYNCING;
+    }
+}
@@ -0,0 +1,187 @@
+package coinbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.json.JSONException;
+
+/**
+ * A file of BinaryTicks, back to back. <br/>
+ * <br/>
+ * Ticks are written through a buffer with Writer and read in place from the
+ * mapped file with Reader. convert() turns a Journal of raw JSON messages
+ * into a tick file, after which replaying it needs no parsing at all.
+ */
+public final class TickFile {
+
+    private TickFile() {
+    }
+
+    /**
+     * What convert() did.
+     */
+    public static class Conversion {
+        // Journal records read.
+        public long messages;
+        // Ticks written.
+        public long ticks;
+        // Messages that aren't ticks, e.g. heartbeats, or didn't parse.
+        public long skipped;
+        // The UTF-8 size of the messages that were converted.
+        public long jsonBytes;
+        public long tickBytes;
+
+        /**
+         * @return how many times smaller the ticks are than the JSON they
+         *         came from.
+         */
+        public double getRatio() {
+            return tickBytes == 0 ? 0 : (double) jsonBytes / tickBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages, %d ticks, %d skipped, %d -> %d bytes (%.1fx)",
+                    messages, ticks, skipped, jsonBytes, tickBytes, getRatio());
+        }
+    }
+
+    /**
+     * Writes every tick in the journal to a new tick file.
+     */
+    public static Conversion convert(Path journalDirectory, Path tickFile) throws IOException {
+        Conversion conversion = new Conversion();
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+        ByteSequence message = new ByteSequence();
+
+        try (JournalReader reader = new JournalReader(journalDirectory);
+                Writer writer = new Writer(tickFile)) {
+            while (reader.next()) {
+                conversion.messages++;
+                ByteBuffer payload = reader.getPayload();
+                try {
+                    decoder.decode(message.wrap(payload), event);
+                } catch (JSONException e) {
+                    conversion.skipped++;
+                    continue;
+                }
+                int length = writer.append(event, reader.getReceivedNanos());
+                if (length == 0) {
+                    conversion.skipped++;
+                } else {
+                    conversion.ticks++;
+                    conversion.jsonBytes += payload.remaining();
+                    conversion.tickBytes += length;
+                }
+            }
+        }
+        return conversion;
+    }
+
+    /**
+     * Appends ticks to a new file.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileChannel file;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(
+                BinaryTick.BYTE_ORDER);
+        private final BinaryTick tick = new BinaryTick();
+
+        public Writer(Path path) throws IOException {
+            file = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * @return the number of bytes written, or 0 if the event isn't a tick
+         *         (see BinaryTick.canEncode()).
+         */
+        public int append(MarketEvent event, long receivedNanos) throws IOException {
+            if (!BinaryTick.canEncode(event)) {
+                return 0;
+            }
+            if (buffer.remaining() < BinaryTick.MAX_LENGTH) {
+                flush();
+            }
+            int length = tick.wrap(buffer, buffer.position()).encode(event, receivedNanos);
+            buffer.position(buffer.position() + length);
+            return length;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            file.close();
+        }
+    }
+
+    /**
+     * Reads ticks in place from the mapped file.
+     */
+    public static class Reader implements Closeable {
+
+        // How much of the file is mapped at once.
+        private static final int WINDOW_BYTES = 1 << 28;
+
+        private final FileChannel file;
+        private final long fileSize;
+        private final BinaryTick tick = new BinaryTick();
+
+        private MappedByteBuffer window;
+        // Where the window starts in the file.
+        private long windowStart;
+        private int position;
+
+        public Reader(Path path) throws IOException {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            fileSize = file.size();
+            map(0);
+        }
+
+        private void map(long start) throws IOException {
+            windowStart = start;
+            long length = Math.min(WINDOW_BYTES, fileSize - start);
+            window = file.map(FileChannel.MapMode.READ_ONLY, start, length);
+            window.order(BinaryTick.BYTE_ORDER);
+            position = 0;
+        }
+
+        /**
+         * @return the next tick, or null at the end of the file. The tick is
+         *         reused and only valid until the next call.
+         */
+        public BinaryTick next() throws IOException {
+            if (windowStart + position >= fileSize) {
+                return null;
+            }
+            if (position + BinaryTick.MAX_LENGTH > window.limit()
+                    && windowStart + window.limit() < fileSize) {
+                // Don't let a tick straddle the end of the window.
+                map(windowStart + position);
+            }
+            tick.wrap(window, position);
+            position += tick.getLength();
+            return tick;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package coinbase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides how a RingBuffer consumer waits for the producer to publish. The
+ * choice trades latency against how much CPU an idle consumer burns:
+ * BusySpin reacts fastest but pins a core, Yielding is a good middle ground,
+ * and Blocking sleeps until it is woken.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Waits until the cursor reaches at least the given sequence.
+     *
+     * @param sequence
+     *            the next sequence the consumer wants.
+     * @param cursor
+     *            the producer's cursor.
+     * @param running
+     *            cleared when the consumer is being halted.
+     * @return the highest published sequence, which may be less than sequence
+     *         if the consumer was halted while waiting.
+     */
+    long waitFor(long sequence, Sequence cursor, AtomicBoolean running)
+            throws InterruptedException;
+
+    /**
+     * Advances the producer's cursor to the newly published sequence and
+     * wakes any blocked consumers. Called by the producer after every
+     * publish.
+     */
+    default void publish(Sequence cursor, long sequence) {
+        cursor.set(sequence);
+        signalAll();
+    }
+
+    /**
+     * Wakes any blocked consumers, e.g. so they notice they are being halted.
+     */
+    void signalAll();
+
+    /**
+     * Spins on the cursor. Lowest latency; uses a whole core per consumer.
+     */
+    public static class BusySpin implements WaitStrategy {
+        @Override
+        public long waitFor(long sequence, Sequence cursor, AtomicBoolean running) {
+            long available;
+            while ((available = cursor.get()) < sequence && running.get()) {
+                // Spin.
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    /**
+     * Spins for a while, then yields the thread between checks.
+     */
+    public static class Yielding implements WaitStrategy {
+
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        public long waitFor(long sequence, Sequence cursor, AtomicBoolean running) {
+            long available;
+            int counter = SPIN_TRIES;
+            while ((available = cursor.get()) < sequence && running.get()) {
+                if (counter > 0) {
+                    counter--;
+                } else {
+                    Thread.yield();
+                }
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    /**
+     * Parks the consumer on a lock until the producer signals. Cheapest on CPU,
+     * slowest to react.
+     */
+    public static class Blocking implements WaitStrategy {
+
+        // How long to sleep before rechecking, in case we are halted.
+        private static final long TIMEOUT_MILLIS = 100;
+
+        private final Lock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+
+        // Lets the producer skip the lock when nobody is waiting.
+        private volatile int waiters;
+
+        @Override
+        public long waitFor(long sequence, Sequence cursor, AtomicBoolean running)
+                throws InterruptedException {
+            long available;
+            if ((available = cursor.get()) < sequence) {
+                lock.lock();
+                try {
+                    waiters++;
+                    while ((available = cursor.get()) < sequence && running.get()) {
+                        published.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    waiters--;
+                    lock.unlock();
+                }
+            }
+            return available;
+        }
+
+        /**
+         * A consumer bumps waiters and then rechecks the cursor, and the
+         * producer moves the cursor and then checks waiters. A lazy store to
+         * the cursor could be reordered after the read of waiters, letting
+         * both miss each other until the consumer's timeout, so the cursor is
+         * written with a full fence.
+         */
+        @Override
+        public void publish(Sequence cursor, long sequence) {
+            cursor.setVolatile(sequence);
+            signalAll();
+        }
+
+        @Override
+        public void signalAll() {
+            if (waiters != 0) {
+                lock.lock();
+                try {
+                    published.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
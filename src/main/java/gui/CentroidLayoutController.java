@@ -20,6 +20,8 @@ import agents.Historian.History;
 import agents.Historian.SetFilter;
 import agents.Historian.TypeFilter;
 import agents.SimpleClusters;
+import coinbase.CandleStore;
+import coinbase.Coinbase;
 import coinbase.CoinbaseClient;
 
 public class CentroidLayoutController {
@@ -110,9 +112,13 @@ public class CentroidLayoutController {
             // Every 10 seconds.
             int granularity = 10;
 
-            // Get all the data from the start date to the end date.
-            // One minute timeframe.
-            double[][] response = CoinbaseClient.getHistoricalData(startDate, endDate, granularity);
+            // Get all the data from the start date to the end date, keeping
+            // the candles on disk so the next run doesn't download them again.
+            double[][] response;
+            try (CandleStore store = new CandleStore(CandleStore.DEFAULT_DIRECTORY)) {
+                response = store.load(Coinbase.BITCOIN_USD, granularity, startDate, endDate,
+                        CoinbaseClient.newBackfill()).toRows();
+            }
 
             // Let the historian organize the data.
             Historian historian = new Historian(response);
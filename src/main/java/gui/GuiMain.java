@@ -46,7 +46,10 @@ public class GuiMain extends Application {
             client.addListener(controller.getListener());
 
             URI uri = URI.create(Coinbase.COINBASE_SOCKET_URL);
-            client.openWebSocket(uri);
+            // Reconnects by itself if the feed drops, keeping the chart going.
+            // Connects in the background, so the window is up straight away.
+            client.openManagedWebSocket(uri).thenAccept(
+                    session -> System.out.println("Connected to " + uri));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -7,11 +7,10 @@ import javafx.scene.chart.NumberAxis;
 import javafx.scene.layout.Pane;
 
 import org.eclipse.jetty.websocket.api.Session;
-import org.eclipse.jetty.websocket.api.WebSocketAdapter;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import coinbase.Coinbase;
+import coinbase.MarketEvent;
+import coinbase.MarketListener;
 
 public class LayoutController {
     @FXML
@@ -58,35 +57,29 @@ public class LayoutController {
         lc_chart.setCreateSymbols(false);
     }
 
-    public WebSocketAdapter getListener() {
-        return new WebSocketAdapter() {
+    public MarketListener getListener() {
+        return new MarketListener() {
 
             @Override
-            public void onWebSocketConnect(Session session) {
-                super.onWebSocketConnect(session);
+            public void onConnect(Session session) {
                 System.out.println("Socket Connected: " + session);
             }
 
             @Override
-            public void onWebSocketText(String message) {
-                super.onWebSocketText(message);
-
-                try {
-                JSONObject json = new JSONObject(message);
-                // Parse the message that we've just received from Coinbase.
-                String type = json.getString(Coinbase.TYPE);
+            public void onMarketEvent(MarketEvent event) {
 
                 // Base case: Coinbase sent us an error.
-                if (type.equals(Coinbase.ERROR)) {
-                    System.err.println("Coinbase sent an error: "
-                            + json.getString(Coinbase.MESSAGE));
+                if (event.getType() == MarketEvent.Type.ERROR) {
+                    System.err.println("Coinbase sent an error: " + event.getMessage());
                     return;
                 }
 
-                // Parameters
-                long sequence = json.getLong(Coinbase.SEQUENCE);
-                double price = json.getDouble(Coinbase.PRICE);
-                String side = json.getString(Coinbase.SIDE);
+                // Parameters. The event is reused by the client, so copy out
+                // what the FX thread needs.
+                MarketEvent.Type type = event.getType();
+                long sequence = event.getSequence();
+                double price = event.getPrice();
+                MarketEvent.Side side = event.getSide();
 
                 Platform.runLater(new Runnable() {
                     @Override
@@ -94,19 +87,19 @@ public class LayoutController {
 
                         // Update the chart depending on the type of message
                         // received.
-                        if (type.equals(Coinbase.MATCH)) {
+                        if (type == MarketEvent.Type.MATCH) {
                             // Update the match price.
                             matchPrice = price;
-                        } else if (type.equals(Coinbase.RECEIVED)) {
+                        } else if (type == MarketEvent.Type.RECEIVED) {
 
-                            if (Coinbase.BUY.equals(side)) {
+                            if (side == MarketEvent.Side.BUY) {
                                 buyPrice = price;
                                 if (buyPrice != 0) {
                                     // Update the buy price.
                                     buySeries.getData().add(
                                             new LineChart.Data<Number, Number>(sequence, buyPrice));
                                 }
-                            } else if (Coinbase.SELL.equals(side)) { // SELL
+                            } else if (side == MarketEvent.Side.SELL) { // SELL
                                 sellPrice = price;
                                 if (sellPrice != 0) {
                                     // Update the sell price.
@@ -145,20 +138,15 @@ public class LayoutController {
                         xAxis.setUpperBound(sequence - 1);
                     }
                 });
-                } catch(JSONException e) {
-                    e.printStackTrace();
-                }
             }
 
             @Override
-            public void onWebSocketClose(int statusCode, String reason) {
-                super.onWebSocketClose(statusCode, reason);
+            public void onClose(int statusCode, String reason) {
                 System.out.println("Socket Closed: [" + statusCode + "] " + reason);
             }
 
             @Override
-            public void onWebSocketError(Throwable e) {
-                super.onWebSocketError(e);
+            public void onError(Throwable e) {
                 e.printStackTrace();
             }
         };
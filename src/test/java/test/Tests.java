@@ -3,14 +3,57 @@ package test;
 import static java.lang.System.out;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
-
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.common.frames.ContinuationFrame;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
+import org.json.JSONException;
 import org.junit.Test;
 
 import agents.EMClusters;
@@ -22,11 +65,43 @@ import agents.Historian.TypeFilter;
 import agents.LatentSourceModel;
 import agents.NormalizedEMClusters;
 import agents.PeerPressureAgent;
+import agents.RingWindow;
+import agents.StatsWindow;
 import agents.SimpleClusters;
 import agents.TestAgent;
 import coinbase.Coinbase;
+import coinbase.Backfill;
+import coinbase.Backoff;
 import coinbase.CoinbaseClient;
+import coinbase.FeedDecoder;
+import coinbase.FeedMetrics;
+import coinbase.FrameDriver;
+import coinbase.BinaryTick;
+import coinbase.BookSnapshot;
+import coinbase.CandleAggregator;
+import coinbase.CandleArchive;
+import coinbase.CandleParser;
+import coinbase.CandlePyramid;
+import coinbase.CandleStore;
+import coinbase.Candles;
+import coinbase.EventProcessor;
+import coinbase.Journal;
+import coinbase.Latency;
+import coinbase.LatencyHistogram;
+import coinbase.JournalReader;
+import coinbase.Mailbox;
+import coinbase.MarketEvent;
+import coinbase.MarketListener;
+import coinbase.OrderBook;
+import coinbase.OverflowPolicy;
+import coinbase.RateLimiter;
+import coinbase.Replay;
+import coinbase.RingBuffer;
+import coinbase.SequenceGuard;
+import coinbase.TickFile;
+import coinbase.WaitStrategy;
 import coinbase.ResponseDetail;
+import coinbase.RestClient;
 
 public class Tests {
 
@@ -78,6 +153,1479 @@ public class Tests {
         }
     }
 
+    @Test
+    public void decodeFeedMessage() {
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+
+        decoder.decode("{\"type\":\"received\",\"sequence\":10,\"order_id\":"
+                + "\"d50ec984-77a8-460a-b958-66f114b0de9b\",\"size\":\"0.00100000\","
+                + "\"price\":\"443.00000000\",\"side\":\"buy\",\"product_id\":\"BTC-USD\"}",
+                event);
+        assertEquals(MarketEvent.Type.RECEIVED, event.getType());
+        assertEquals(MarketEvent.Side.BUY, event.getSide());
+        assertEquals(Coinbase.BITCOIN_USD, event.getProductId());
+        assertEquals(10, event.getSequence());
+        assertEquals(443, event.getPrice(), 0);
+        assertEquals(.001, event.getSize(), 0);
+
+        decoder.decode("{\"type\":\"done\",\"sequence\":11,\"price\":\"200.2\","
+                + "\"remaining_size\":\"0.5\",\"reason\":\"canceled\",\"side\":\"sell\"}",
+                event);
+        assertEquals(MarketEvent.Type.DONE, event.getType());
+        assertEquals(MarketEvent.Side.SELL, event.getSide());
+        assertEquals(.5, event.getRemainingSize(), 0);
+        assertEquals(0, event.getSize(), 0);
+        assertEquals(true, event.isCanceled());
+
+        decoder.decode("{\"type\":\"error\",\"message\":\"Failed to subscribe\"}", event);
+        assertEquals(MarketEvent.Type.ERROR, event.getType());
+        assertEquals("Failed to subscribe", event.getMessage());
+    }
+
+    @Test
+    public void feedDecoderSkipsUnknownValues() {
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+
+        decoder.decode(" { \"nested\" : {\"a\":[1,{\"b\":\"}\"}],\"c\":null}, \"escaped\":\"a\\\"b\","
+                + "\"type\":\"match\",\"sequence\":\"-3\",\"price\":1.5e2,\"size\":-0.125,"
+                + "\"remaining_size\":null,\"flag\":true,\"product_id\":\"XBT-ABC\"} ", event);
+        assertEquals(MarketEvent.Type.MATCH, event.getType());
+        assertEquals(-3, event.getSequence());
+        assertEquals(150, event.getPrice(), 0);
+        assertEquals(-.125, event.getSize(), 0);
+        assertEquals(0, event.getRemainingSize(), 0);
+        assertEquals("XBT-ABC", event.getProductId());
+
+        // Digits beyond what a double holds exactly fall back to the JDK.
+        decoder.decode("{\"price\":\"0.1234567890123456789\"}", event);
+        assertEquals(0.1234567890123456789, event.getPrice(), 0);
+
+        try {
+            decoder.decode("{\"type\":\"match\"", event);
+            fail("Truncated message was accepted");
+        } catch (JSONException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void feedDecoderDoesNotAllocate() {
+        String message =
+                "{\"type\":\"match\",\"trade_id\":10,\"sequence\":50,"
+                        + "\"maker_order_id\":\"ac928c66-ca53-498f-9c13-a110027a60e8\","
+                        + "\"taker_order_id\":\"132fb6ae-456b-4654-b4e0-d681ac05cea1\","
+                        + "\"time\":\"2014-11-07T08:19:27.028459Z\",\"product_id\":\"BTC-USD\","
+                        + "\"size\":\"5.23512\",\"price\":\"400.23\",\"side\":\"sell\"}";
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so the decoder is compiled before we measure.
+        for (int i = 0; i < 200000; i++) {
+            decoder.decode(message, event);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            decoder.decode(message, event);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(400.23, event.getPrice(), 0);
+        // Allow for the measurement itself, but nothing per message.
+        if (allocated > 1024) {
+            fail("Decoding allocated " + allocated + " bytes for 100000 messages");
+        }
+    }
+
+    @Test
+    public void ringBufferDeliversEveryEventInOrder() throws Exception {
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+        RingBuffer ring = new RingBuffer(64, new WaitStrategy.Yielding());
+
+        final int count = 100000;
+        final long[] lastSeen = new long[2];
+        final boolean[] outOfOrder = new boolean[2];
+        EventProcessor[] processors = new EventProcessor[2];
+        for (int i = 0; i < processors.length; i++) {
+            final int consumer = i;
+            processors[i] = ring.addConsumer(new MarketListener() {
+                @Override
+                public void onMarketEvent(MarketEvent event) {
+                    if (event.getSequence() != lastSeen[consumer] + 1) {
+                        outOfOrder[consumer] = true;
+                    }
+                    lastSeen[consumer] = event.getSequence();
+                }
+            });
+        }
+
+        // Much larger than the ring, so the producer has to wait on consumers.
+        for (int i = 1; i <= count; i++) {
+            decoder.decode("{\"type\":\"match\",\"sequence\":" + i + "}", event);
+            ring.publish(event);
+        }
+
+        for (EventProcessor processor : processors) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (ring.getLag(processor) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, ring.getLag(processor));
+            ring.removeConsumer(processor);
+        }
+        assertEquals(count, lastSeen[0]);
+        assertEquals(count, lastSeen[1]);
+        assertEquals(false, outOfOrder[0] || outOfOrder[1]);
+    }
+
+    @Test
+    public void orderBookFollowsFeed() {
+        String a = "aaaaaaaa-0000-0000-0000-000000000001";
+        String b = "bbbbbbbb-0000-0000-0000-000000000002";
+        String c = "cccccccc-0000-0000-0000-000000000003";
+        String d = "dddddddd-0000-0000-0000-000000000004";
+
+        OrderBook book = new OrderBook(Coinbase.BITCOIN_USD);
+        book.seed(BookSnapshot.parse("{\"sequence\":100,"
+                + "\"bids\":[[\"250.10\",\"1.5\",\"" + a + "\"],[\"250.00\",\"2\",\"" + b + "\"]],"
+                + "\"asks\":[[\"250.20\",\"0.7\",\"" + c + "\"]]}"));
+        assertEquals(250.10, book.getBestBid(), 0);
+        assertEquals(250.20, book.getBestAsk(), 0);
+        assertEquals(3, book.getOrderCount());
+
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+
+        // Already part of the snapshot.
+        decoder.decode("{\"type\":\"done\",\"sequence\":100,\"order_id\":\"" + a + "\"}", event);
+        book.onMarketEvent(event);
+        assertEquals(250.10, book.getBestBid(), 0);
+
+        // A better bid joins the book.
+        decoder.decode("{\"type\":\"open\",\"sequence\":101,\"order_id\":\"" + d
+                + "\",\"price\":\"250.15\",\"remaining_size\":\"0.25\",\"side\":\"buy\"}",
+                event);
+        book.onMarketEvent(event);
+        assertEquals(250.15, book.getBestBid(), 0);
+        assertEquals(3, book.getDepth(MarketEvent.Side.BUY));
+
+        // Part of the ask is taken, then the rest is cancelled.
+        decoder.decode("{\"type\":\"match\",\"sequence\":102,\"maker_order_id\":\"" + c
+                + "\",\"taker_order_id\":\"" + d + "\",\"price\":\"250.20\",\"size\":\"0.2\","
+                + "\"side\":\"sell\"}", event);
+        book.onMarketEvent(event);
+        assertEquals(0.5, book.getLevelSize(MarketEvent.Side.SELL, 0), 1e-12);
+        decoder.decode("{\"type\":\"done\",\"sequence\":103,\"order_id\":\"" + c
+                + "\",\"reason\":\"canceled\",\"remaining_size\":\"0.5\"}", event);
+        book.onMarketEvent(event);
+        assertEquals(0, book.getDepth(MarketEvent.Side.SELL));
+        assertEquals(true, Double.isNaN(book.getBestAsk()));
+
+        // The best bid shrinks, then leaves.
+        decoder.decode("{\"type\":\"change\",\"sequence\":104,\"order_id\":\"" + d
+                + "\",\"new_size\":\"0.1\",\"old_size\":\"0.25\"}", event);
+        book.onMarketEvent(event);
+        assertEquals(0.1, book.getLevelSize(MarketEvent.Side.BUY, 0), 1e-12);
+        decoder.decode("{\"type\":\"done\",\"sequence\":105,\"order_id\":\"" + d
+                + "\",\"reason\":\"filled\"}", event);
+        book.onMarketEvent(event);
+        assertEquals(250.10, book.getBestBid(), 0);
+        assertEquals(1, book.getLevelOrderCount(MarketEvent.Side.BUY, 0));
+        assertEquals(2, book.getOrderCount());
+        assertEquals(105, book.getSequence());
+    }
+
+    @Test
+    public void sequenceGuardResyncsAfterGap() throws Exception {
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+        final List<Long> delivered = new ArrayList<>();
+
+        SequenceGuard guard = new SequenceGuard(new MarketListener() {
+            @Override
+            public void onMarketEvent(MarketEvent event) {
+                // Snapshots are recorded as their negated sequence.
+                delivered.add(event.getType() == MarketEvent.Type.SNAPSHOT ? -event
+                        .getSequence() : event.getSequence());
+            }
+        }, () -> BookSnapshot.parse("{\"sequence\":5,\"bids\":[],\"asks\":[]}"));
+
+        // 4 and 5 go missing; 5 is covered by the snapshot, 6 onward replayed.
+        long[] sequences = { 1, 2, 3, 6, 7, 3 };
+        for (long sequence : sequences) {
+            decoder.decode("{\"type\":\"match\",\"sequence\":" + sequence + "}", event);
+            guard.accept(event);
+        }
+        long sequence = 8;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (guard.isResyncing() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            decoder.decode("{\"type\":\"match\",\"sequence\":" + sequence++ + "}", event);
+            guard.accept(event);
+        }
+
+        assertEquals(false, guard.isResyncing());
+        assertEquals(1, guard.getGapCount());
+        assertEquals(1, guard.getResyncCount());
+        assertEquals(Arrays.asList(1L, 2L, 3L, -5L, 6L, 7L), delivered.subList(0, 6));
+        for (int i = 6; i < delivered.size(); i++) {
+            assertEquals(delivered.get(i - 1) + 1, (long) delivered.get(i));
+        }
+        assertEquals(sequence - 1, guard.getLastSequence());
+    }
+
+    @Test
+    public void sequenceGuardBufferStaysBoundedWhileSnapshotsStall() throws Exception {
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+        final List<Long> delivered = new ArrayList<>();
+        final CountDownLatch restBack = new CountDownLatch(1);
+
+        // The REST API is down until the latch is released.
+        SequenceGuard guard = new SequenceGuard(e -> delivered.add(
+                e.getType() == MarketEvent.Type.SNAPSHOT ? -e.getSequence() : e.getSequence()),
+                () -> {
+                    restBack.await();
+                    return BookSnapshot.parse("{\"sequence\":950,\"bids\":[],\"asks\":[]}");
+                });
+        guard.setMaxBuffered(100);
+
+        // 4 goes missing, then far more arrive than the buffer holds.
+        for (long sequence = 1; sequence <= 1000; sequence++) {
+            if (sequence != 4) {
+                decoder.decode("{\"type\":\"match\",\"sequence\":" + sequence + "}", event);
+                guard.accept(event);
+                assertTrue(guard.getBufferedCount() <= 100);
+            }
+        }
+        assertTrue(guard.getOverflowCount() > 0);
+        assertEquals(Arrays.asList(1L, 2L, 3L), delivered);
+
+        // The snapshot only covers what is still buffered.
+        restBack.countDown();
+        long sequence = 1001;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (guard.isResyncing() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            decoder.decode("{\"type\":\"match\",\"sequence\":" + sequence++ + "}", event);
+            guard.accept(event);
+        }
+        assertEquals(false, guard.isResyncing());
+        assertEquals(-950L, (long) delivered.get(3));
+        for (int i = 4; i < delivered.size(); i++) {
+            assertEquals(950 + i - 3, (long) delivered.get(i));
+        }
+        assertEquals(sequence - 1, guard.getLastSequence());
+    }
+
+    @Test
+    public void backoffDoublesUpToMaximum() {
+        Backoff backoff = new Backoff(100, 1000);
+        long[] limits = { 100, 200, 400, 800, 1000, 1000 };
+        for (long limit : limits) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= limit / 2 && delay <= limit);
+        }
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+
+    @Test
+    public void rateLimiterSpacesRequestsAfterBurst() {
+        RateLimiter limiter = new RateLimiter(10, 2);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        // Each further permit is borrowed another tenth of a second ahead.
+        long third = limiter.reserve();
+        long fourth = limiter.reserve();
+        assertTrue(third > 90000000L && third <= 100000000L);
+        assertTrue(fourth > 190000000L && fourth <= 200000000L);
+    }
+
+    @Test
+    public void candleParserHandlesAnyChunking() {
+        byte[] body = ("[[1422921600,226.11,226.5,226.2,226.45,1.25e1],\n"
+                + " [1422921540, 225, 226.3, -0.5, 0.123456789012345678, 3]]")
+                .getBytes(StandardCharsets.US_ASCII);
+
+        // Split the body at every possible point.
+        for (int split = 0; split <= body.length; split++) {
+            CandleParser parser = new CandleParser(new Candles(1));
+            parser.onContent(ByteBuffer.wrap(body, 0, split));
+            parser.onContent(ByteBuffer.wrap(body, split, body.length - split));
+            Candles candles = parser.finish();
+
+            assertEquals(2, candles.size());
+            assertArrayEquals(new double[] { 1422921600, 226.11, 226.5, 226.2, 226.45, 12.5 },
+                    candles.toRows()[0], 0);
+            assertArrayEquals(new double[] { 1422921540, 225, 226.3, -0.5,
+                    0.123456789012345678, 3 }, candles.toRows()[1], 0);
+        }
+
+        try {
+            new CandleParser(new Candles()).onContent(ByteBuffer.wrap(
+                    "{\"message\":\"Invalid\"}".getBytes(StandardCharsets.US_ASCII)));
+            fail("An error object was parsed as candles");
+        } catch (JSONException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void candleStoreRemembersFetchedRanges() throws Exception {
+        Path directory = Files.createTempDirectory("candles");
+        long from = CandleStore.ORIGIN_SECONDS + 3600;
+        long to = from + 600;
+
+        try (CandleStore store = new CandleStore(directory)) {
+            assertEquals(1, store.missing(Coinbase.BITCOIN_USD, 60, from, to).size());
+
+            // The API sends the newest first and leaves out minutes without trades.
+            store.put(Coinbase.BITCOIN_USD, 60, from, to, Candles.fromRows(new double[][] {
+                    { from + 240, 1, 4, 2, 3, 10 }, { from + 60, 5, 8, 6, 7, 20 } }));
+        }
+
+        // Reopen to read it back from disk.
+        CandleStore store = new CandleStore(directory);
+        try {
+            assertEquals(0, store.missing(Coinbase.BITCOIN_USD, 60, from, to).size());
+            List<long[]> missing = store.missing(Coinbase.BITCOIN_USD, 60, from - 120, to + 60);
+            assertEquals(2, missing.size());
+            assertArrayEquals(new long[] { from - 120, from }, missing.get(0));
+            assertArrayEquals(new long[] { to, to + 60 }, missing.get(1));
+
+            Candles candles = store.read(Coinbase.BITCOIN_USD, 60, from, to);
+            assertEquals(2, candles.size());
+            assertArrayEquals(new double[] { from + 60, 5, 8, 6, 7, 20 }, candles.toRows()[0], 0);
+            assertArrayEquals(new double[] { from + 240, 1, 4, 2, 3, 10 }, candles.toRows()[1],
+                    0);
+
+            // 1000s candles don't start at the origin, so their slots would be off.
+            try {
+                store.missing(Coinbase.BITCOIN_USD, 1000, from, to);
+                fail("Granularity that doesn't divide the origin was accepted");
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        } finally {
+            store.close();
+        }
+        try {
+            store.read(Coinbase.BITCOIN_USD, 60, from, to);
+            fail("Closed store was read");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * @return a RestClient that answers with a candle for every period from
+     *         start to end inclusive, newest first, like the exchange.
+     */
+    private static RestClient candleServer() {
+        return new RestClient() {
+            @Override
+            public <T> CompletableFuture<T> getAsync(String url, BodyParser<T> parser) {
+                CompletableFuture<T> future = new CompletableFuture<>();
+                try {
+                    SimpleDateFormat format = new SimpleDateFormat(
+                            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+                    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    String query = url.substring(url.indexOf('?') + 1);
+                    long from = 0, to = 0, granularity = 0;
+                    for (String parameter : query.split("&")) {
+                        String[] pair = parameter.split("=");
+                        if (pair[0].equals("start")) {
+                            from = format.parse(pair[1]).getTime() / 1000;
+                        } else if (pair[0].equals("end")) {
+                            to = format.parse(pair[1]).getTime() / 1000;
+                        } else if (pair[0].equals("granularity")) {
+                            granularity = Long.parseLong(pair[1]);
+                        }
+                    }
+                    StringBuilder body = new StringBuilder("[");
+                    for (long time = to; time >= from; time -= granularity) {
+                        body.append(body.length() > 1 ? "," : "").append("[").append(time)
+                                .append(",1,2,1.5,1.5,10]");
+                    }
+                    parser.onContent(ByteBuffer.wrap(body.append("]").toString().getBytes(
+                            StandardCharsets.UTF_8)));
+                    future.complete(parser.finish());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            }
+        };
+    }
+
+    @Test
+    public void backfillStopsAtTheEndOfTheRange() throws Exception {
+        Backfill backfill = new Backfill(candleServer(), new RateLimiter(1000, 1000));
+
+        // Two and a quarter windows of 200 minutes.
+        long start = 1420070400;
+        long end = start + 450 * 60;
+        Candles candles = backfill.fetch(Coinbase.BITCOIN_USD, new Date(start * 1000),
+                new Date(end * 1000), 60);
+        assertEquals(450, candles.size());
+        assertEquals(start, (long) candles.get(0, Candles.TIME));
+        assertEquals(end - 60, (long) candles.get(449, Candles.TIME));
+    }
+
+    @Test
+    public void failedBackfillDoesNotHoldUpTheNext() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        Backfill failing = new Backfill(new RestClient() {
+            @Override
+            public <T> CompletableFuture<T> getAsync(String url, BodyParser<T> parser) {
+                CompletableFuture<T> future = new CompletableFuture<>();
+                future.completeExceptionally(new IOException("Service unavailable"));
+                return future;
+            }
+        }, limiter);
+        failing.setMaxRetries(0);
+
+        // A thousand windows, which would take 100 seconds of permits.
+        long start = 1420070400;
+        long end = start + 1000 * 200 * 60;
+        try {
+            failing.fetch(Coinbase.BITCOIN_USD, new Date(start * 1000), new Date(end * 1000), 60);
+            fail("Backfill didn't fail");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        long begin = System.nanoTime();
+        Candles candles = new Backfill(candleServer(), limiter).fetch(Coinbase.BITCOIN_USD,
+                new Date(start * 1000), new Date((start + 3600) * 1000), 60);
+        long millis = (System.nanoTime() - begin) / 1000000;
+        out.println("Fetched after a failed backfill in " + millis + "ms");
+        assertEquals(60, candles.size());
+        assertTrue(millis < 1000);
+    }
+
+    @Test
+    public void restClientPoolsRequestsAgainstLocalServer() throws Exception {
+        // Answers every request with one candle after a pause, counting how
+        // many it is working on at once.
+        final AtomicInteger working = new AtomicInteger();
+        final AtomicInteger mostWorking = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService handlers = Executors.newFixedThreadPool(16);
+        server.setExecutor(handlers);
+        server.createContext("/", exchange -> {
+            mostWorking.accumulateAndGet(working.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(exchange.getRequestURI().getPath().equals("/slow") ? 500 : 50);
+                boolean found = !exchange.getRequestURI().getPath().equals("/missing");
+                byte[] body = (found ? "[[1420070400,1,2,1.5,1.5,10]]" : "Not found")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(found ? 200 : 404, body.length);
+                exchange.getResponseBody().write(body);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+                working.decrementAndGet();
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        RestClient original = CoinbaseClient.getRestClient();
+        try {
+            // No more than two on the wire at once; the rest wait their turn.
+            RestClient pooled = new RestClient(2, 5000);
+            List<CompletableFuture<Candles>> pages = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                pages.add(pooled.getAsync(url + "/candles", new CandleParser(new Candles(1))));
+            }
+            for (CompletableFuture<Candles> page : pages) {
+                assertEquals(1420070400, page.get(5, TimeUnit.SECONDS).get(0, Candles.TIME), 0);
+            }
+            assertEquals(2, mostWorking.get());
+            assertEquals(0, pooled.getPendingRequests());
+            try {
+                pooled.get(url + "/missing");
+                fail("404 was accepted");
+            } catch (IOException e) {
+                // Expected.
+            }
+
+            // Swapping clients lets requests on the old one finish.
+            CoinbaseClient.setRestClient(pooled);
+            CompletableFuture<String> slow = pooled.getAsync(url + "/slow");
+            CoinbaseClient.setRestClient(new RestClient());
+            assertEquals("[[1420070400,1,2,1.5,1.5,10]]", slow.get(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pooled.isStarted() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(false, pooled.isStarted());
+        } finally {
+            CoinbaseClient.setRestClient(original);
+            server.stop(0);
+            handlers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void journalReadsBackAcrossSegments() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+
+        // Small segments so that the journal rolls several times.
+        Journal journal = new Journal(directory, 256);
+        for (int i = 1; i <= 20; i++) {
+            journal.append(1000 + i, i, "{\"type\":\"match\",\"sequence\":" + i + ",\"e\":\"\u20ac\"}");
+        }
+        journal.close();
+
+        // Reopening starts a new segment after the old ones.
+        journal = new Journal(directory, 256);
+        journal.append(2000, 21, "\ud83d\ude00");
+        journal.close();
+
+        try (JournalReader reader = new JournalReader(directory)) {
+            for (int i = 1; i <= 20; i++) {
+                assertTrue(reader.next());
+                assertEquals(1000 + i, reader.getReceivedNanos());
+                assertEquals(i, reader.getSequence());
+                assertEquals("{\"type\":\"match\",\"sequence\":" + i + ",\"e\":\"\u20ac\"}",
+                        reader.getMessage());
+            }
+            assertTrue(reader.next());
+            assertEquals("\ud83d\ude00", reader.getMessage());
+            assertEquals(false, reader.next());
+        }
+    }
+
+    @Test
+    public void replayDrivesListenersFromJournal() throws Exception {
+        Path directory = Files.createTempDirectory("replay");
+        try (Journal journal = new Journal(directory)) {
+            for (int i = 1; i <= 1000; i++) {
+                // Skip a message to check that replay carries on over gaps.
+                if (i != 500) {
+                    journal.append(i, "{\"type\":\"match\",\"sequence\":" + i
+                            + ",\"price\":\"" + i + ".5\",\"product_id\":\"BTC-USD\"}");
+                }
+            }
+        }
+
+        CoinbaseClient client = new CoinbaseClient();
+        final double[] total = new double[1];
+        client.addListener(new MarketListener() {
+            @Override
+            public void onMarketEvent(MarketEvent event) {
+                total[0] += event.getPrice();
+            }
+        });
+        final List<String> raw = new ArrayList<String>();
+        client.addListener(new WebSocketAdapter() {
+            @Override
+            public void onWebSocketText(String message) {
+                raw.add(message);
+            }
+        });
+
+        Replay replay = new Replay(client, directory);
+        assertEquals(999, replay.run());
+        assertEquals(999, raw.size());
+        assertEquals("{\"type\":\"match\",\"sequence\":1,\"price\":\"1.5\","
+                + "\"product_id\":\"BTC-USD\"}", raw.get(0));
+        // The sum of i + .5 for every i but 500.
+        assertEquals(500500 + 1000 * .5 - 500.5, total[0], 1e-6);
+        assertEquals(1, client.getSequenceGuard().getGapCount());
+        out.println("Replayed " + (long) replay.getMessagesPerSecond() + " messages/sec");
+    }
+
+    @Test
+    public void replayRoutesEachProductToItsOwnShard() throws Exception {
+        // Two products interleaved, each with its own sequence numbers, plus
+        // an error for every product and a product nobody subscribed to.
+        Path directory = Files.createTempDirectory("shards");
+        try (Journal journal = new Journal(directory)) {
+            for (int i = 1; i <= 50; i++) {
+                journal.append(i, "{\"type\":\"match\",\"sequence\":" + i
+                        + ",\"product_id\":\"BTC-USD\"}");
+                // The euro feed skips a message.
+                if (i != 25) {
+                    journal.append(1000 + i, "{\"type\":\"match\",\"sequence\":" + (1000 + i)
+                            + ",\"product_id\":\"BTC-EUR\"}");
+                }
+                if (i == 10) {
+                    journal.append(0, "{\"type\":\"error\",\"message\":\"Slow down\"}");
+                    journal.append(7, "{\"type\":\"match\",\"sequence\":7,"
+                            + "\"product_id\":\"BTC-GBP\"}");
+                }
+            }
+        }
+
+        CoinbaseClient client = new CoinbaseClient(Coinbase.BITCOIN_USD, Coinbase.BITCOIN_EUR);
+        final List<String> dollars = new ArrayList<String>();
+        final List<String> euros = new ArrayList<String>();
+        client.addListener(Coinbase.BITCOIN_USD, event -> dollars.add(event.getType() + " "
+                + event.getProductId() + " " + event.getSequence()));
+        client.addListener(Coinbase.BITCOIN_EUR, event -> euros.add(event.getType() + " "
+                + event.getProductId() + " " + event.getSequence()));
+        assertEquals(101, new Replay(client, directory).run());
+
+        assertEquals(51, dollars.size());
+        assertEquals(50, euros.size());
+        assertEquals("ERROR null 0", dollars.get(10));
+        assertEquals("ERROR null 0", euros.get(10));
+        long expected = 1;
+        for (String seen : dollars) {
+            if (!seen.startsWith("ERROR")) {
+                assertEquals("MATCH BTC-USD " + expected++, seen);
+            }
+        }
+        expected = 1001;
+        for (String seen : euros) {
+            if (!seen.startsWith("ERROR")) {
+                assertEquals("MATCH BTC-EUR " + expected++, seen);
+                if (expected == 1025) {
+                    expected++;
+                }
+            }
+        }
+        assertEquals(0, client.getSequenceGuard(Coinbase.BITCOIN_USD).getGapCount());
+        assertEquals(50, client.getSequenceGuard(Coinbase.BITCOIN_USD).getLastSequence());
+        assertEquals(1, client.getSequenceGuard(Coinbase.BITCOIN_EUR).getGapCount());
+        assertEquals(1050, client.getSequenceGuard(Coinbase.BITCOIN_EUR).getLastSequence());
+    }
+
+    /**
+     * Checks that it is handed a contiguous run of sequence numbers.
+     */
+    private static class SequenceRecorder implements MarketListener {
+        long first, last, count;
+        boolean broken;
+
+        @Override
+        public void onMarketEvent(MarketEvent event) {
+            if (count == 0) {
+                first = event.getSequence();
+            } else if (event.getSequence() != last + 1) {
+                broken = true;
+            }
+            last = event.getSequence();
+            count++;
+        }
+    }
+
+    @Test
+    public void listenersComeAndGoDuringReplay() throws Exception {
+        final int messages = 100000;
+        Path directory = Files.createTempDirectory("churn");
+        try (Journal journal = new Journal(directory)) {
+            for (int i = 1; i <= messages; i++) {
+                journal.append(i, "{\"type\":\"match\",\"sequence\":" + i
+                        + ",\"product_id\":\"BTC-USD\"}");
+            }
+        }
+
+        // Called directly, then through a ring.
+        for (final CoinbaseClient client : new CoinbaseClient[] { new CoinbaseClient(),
+                new CoinbaseClient(256, new WaitStrategy.Yielding()) }) {
+            SequenceRecorder everything = new SequenceRecorder();
+            client.addListener(everything);
+
+            // Adds and removes listeners for as long as the replay runs.
+            final AtomicBoolean replaying = new AtomicBoolean(true);
+            final List<SequenceRecorder> churned = new ArrayList<SequenceRecorder>();
+            final Throwable[] failure = new Throwable[1];
+            Thread churn = new Thread(() -> {
+                Random random = new Random(7);
+                try {
+                    while (replaying.get()) {
+                        SequenceRecorder recorder = new SequenceRecorder();
+                        client.addListener(recorder);
+                        LockSupport.parkNanos(random.nextInt(200000));
+                        assertTrue(client.removeListener(recorder));
+                        churned.add(recorder);
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }, "Churn");
+            churn.start();
+            try {
+                assertEquals(messages, new Replay(client, directory).run());
+            } finally {
+                replaying.set(false);
+                churn.join();
+            }
+            assertEquals(null, failure[0]);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (client.getLag(everything) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            client.removeListener(everything);
+            assertEquals(messages, everything.count);
+            assertEquals(false, everything.broken);
+
+            long seen = 0;
+            for (SequenceRecorder recorder : churned) {
+                assertEquals(false, recorder.broken);
+                if (recorder.count > 0) {
+                    assertEquals(recorder.count, recorder.last - recorder.first + 1);
+                    seen++;
+                }
+            }
+            out.println(churned.size() + " listeners came and went, " + seen + " saw events");
+            assertTrue(seen > 0);
+        }
+    }
+
+    @Test
+    public void feedMetricsCountMessages() throws Exception {
+        Path directory = Files.createTempDirectory("metrics");
+        try (Journal journal = new Journal(directory)) {
+            journal.append(1, "{\"type\":\"match\",\"sequence\":1,\"product_id\":\"BTC-USD\"}");
+            journal.append(2, "{\"type\":\"open\",\"sequence\":2,\"product_id\":\"BTC-USD\"}");
+            journal.append(0, "{\"type\":");
+        }
+        CoinbaseClient client = new CoinbaseClient();
+        MarketListener listener = event -> {
+        };
+        client.addListener(listener);
+        new Replay(client, directory).run();
+
+        FeedMetrics metrics = client.getMetrics();
+        assertEquals(3, metrics.getMessages());
+        assertEquals(1, metrics.getParseErrors());
+        assertEquals(1, (long) metrics.getMessagesByType().get("MATCH"));
+        assertEquals(1, (long) metrics.getMessagesByType().get("OPEN"));
+
+        // The listener is published over JMX while it is added.
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = null;
+        for (ObjectName candidate : server.queryNames(new ObjectName("coinbase:type=Listener,*"),
+                null)) {
+            if (((String) server.getAttribute(candidate, "Listener")).endsWith(
+                    Integer.toHexString(System.identityHashCode(listener)))) {
+                name = candidate;
+            }
+        }
+        assertEquals(2L, server.getAttribute(name, "Events"));
+        client.removeListener(listener);
+        assertEquals(false, server.isRegistered(name));
+    }
+
+    @Test
+    public void parseLatencyLeavesOutRawListenersAndJournal() throws Exception {
+        Path directory = Files.createTempDirectory("parse");
+        try (Journal journal = new Journal(directory.resolve("in"))) {
+            for (int i = 1; i <= 20; i++) {
+                journal.append(i, "{\"type\":\"match\",\"sequence\":" + i
+                        + ",\"price\":\"400.5\",\"product_id\":\"BTC-USD\"}");
+            }
+        }
+        CoinbaseClient client = new CoinbaseClient();
+        client.addListener(new WebSocketAdapter() {
+            @Override
+            public void onWebSocketText(String message) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        });
+        final List<Long> waits = new ArrayList<Long>();
+        client.addListener(event -> waits.add(System.nanoTime() - event.getReceivedNanos()));
+
+        Latency.PARSE.snapshotAndReset();
+        try (Journal journal = new Journal(directory.resolve("out"))) {
+            client.setJournal(journal);
+            assertEquals(20, new Replay(client, directory.resolve("in")).run());
+            client.setJournal(null);
+        }
+        LatencyHistogram.Snapshot parse = Latency.PARSE.snapshotAndReset();
+        out.println(parse);
+        assertEquals(20, parse.getCount());
+        for (long wait : waits) {
+            // The slow listener is in the end to end time...
+            assertTrue(wait >= TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        // ...but not in the parse time.
+        assertTrue(parse.getValueAtPercentile(50) < TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void isolatedListenersDontHoldUpOthers() throws Exception {
+        // The first message on its own, then the rest once the stuck listener
+        // is known to be stuck on it.
+        Path first = Files.createTempDirectory("isolation");
+        Path rest = Files.createTempDirectory("isolation");
+        try (Journal journal = new Journal(first)) {
+            journal.append(1, "{\"type\":\"match\",\"sequence\":1,\"product_id\":\"BTC-USD\"}");
+        }
+        try (Journal journal = new Journal(rest)) {
+            for (int i = 2; i <= 100; i++) {
+                journal.append(i, "{\"type\":\"match\",\"sequence\":" + i
+                        + ",\"product_id\":\"BTC-USD\"}");
+            }
+        }
+        CoinbaseClient client = new CoinbaseClient();
+        client.setListenerIsolation(OverflowPolicy.CONFLATE, 8, true);
+
+        // One listener is stuck until we let it go, another throws.
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> stuckSaw = new CopyOnWriteArrayList<Long>();
+        MarketListener stuck = event -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stuckSaw.add(event.getSequence());
+        };
+        MarketListener failing = event -> {
+            throw new IllegalStateException("Always fails");
+        };
+        client.addListener(stuck);
+        client.addListener(failing);
+        client.setListenerIsolation(null, 0, false);
+        final long[] seen = new long[1];
+        client.addListener(event -> seen[0]++);
+
+        // Every message gets through to the direct listener while the stuck
+        // one holds on to the first.
+        new Replay(client, first).run();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        new Replay(client, rest).run();
+        assertEquals(100, seen[0]);
+
+        Mailbox<?> mailbox = client.getMailbox(stuck);
+        assertEquals(8, mailbox.getMaxQueueDepth());
+        assertTrue(mailbox.getDropped() > 0);
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!stuckSaw.contains(100L) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // Conflated: the first, which it was stuck on, then only what came
+        // after the last time its mailbox filled up.
+        assertEquals(1L, (long) stuckSaw.get(0));
+        assertTrue(stuckSaw.size() <= 1 + 8);
+        assertEquals(100, mailbox.getDropped() + stuckSaw.size());
+
+        Mailbox<?> failed = client.getMailbox(failing);
+        deadline = System.currentTimeMillis() + 5000;
+        while (failed.getDelivered() + failed.getDropped() < 100
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(failed.getDelivered(), failed.getFailures());
+        assertTrue(client.removeListener(stuck));
+        assertTrue(client.removeListener(failing));
+    }
+
+    @Test
+    public void removingBlockedListenerDoesNotHang() throws Exception {
+        Path directory = Files.createTempDirectory("isolation");
+        try (Journal journal = new Journal(directory)) {
+            journal.append(1, "{\"type\":\"match\",\"sequence\":1,\"product_id\":\"BTC-USD\"}");
+        }
+        CoinbaseClient client = new CoinbaseClient();
+        client.setListenerIsolation(OverflowPolicy.BLOCK, 8, false);
+
+        // One listener waits for ever unless interrupted, the other ignores
+        // interrupts until the end of the test.
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch never = new CountDownLatch(1);
+        boolean[] interrupted = new boolean[1];
+        MarketListener waiting = event -> {
+            entered.countDown();
+            try {
+                never.await();
+            } catch (InterruptedException e) {
+                interrupted[0] = true;
+            }
+        };
+        AtomicBoolean released = new AtomicBoolean();
+        MarketListener stubborn = event -> {
+            entered.countDown();
+            while (!released.get()) {
+                LockSupport.parkNanos(1000000);
+            }
+        };
+        client.addListener(waiting);
+        client.addListener(stubborn);
+        new Replay(client, directory).run();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        assertTrue(client.removeListener(waiting));
+        assertTrue(interrupted[0]);
+        assertTrue(client.removeListener(stubborn));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + millis + "ms", millis < 3000);
+        released.set(true);
+    }
+
+    @Test
+    public void frameDriverReadsTextInPlace() throws Exception {
+        Path directory = Files.createTempDirectory("frames");
+        String whole = "{\"type\":\"match\",\"reason\":\"caf\u00e9\"}";
+        List<String> messages = new ArrayList<>();
+        try (Journal journal = new Journal(directory)) {
+            FrameDriver driver = new FrameDriver(WebSocketPolicy.newClientPolicy(),
+                    new FrameDriver.Endpoint() {
+                        @Override
+                        public void onConnect(Session session) {
+                        }
+
+                        @Override
+                        public void onText(CharSequence message) {
+                            messages.add(message.toString());
+                            try {
+                                journal.append(messages.size(), message);
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+
+                        @Override
+                        public void onClose(int statusCode, String reason) {
+                        }
+
+                        @Override
+                        public void onError(Throwable error) {
+                        }
+                    });
+
+            driver.incomingFrame(new TextFrame().setPayload(whole));
+
+            // The same message in three frames, split inside the \u00e9.
+            byte[] bytes = whole.getBytes(StandardCharsets.UTF_8);
+            int split = bytes.length - 3;
+            driver.incomingFrame(new TextFrame().setPayload(ByteBuffer.wrap(bytes, 0, 10))
+                    .setFin(false));
+            driver.incomingFrame(new ContinuationFrame().setPayload(ByteBuffer.wrap(bytes, 10,
+                    split - 10)).setFin(false));
+            driver.incomingFrame(new ContinuationFrame().setPayload(ByteBuffer.wrap(bytes, split,
+                    bytes.length - split)).setFin(true));
+            assertEquals(Arrays.asList(whole, whole), messages);
+        }
+
+        // The bytes are journaled as they came, not re-encoded.
+        try (JournalReader reader = new JournalReader(directory)) {
+            for (int i = 0; i < 2; i++) {
+                assertTrue(reader.next());
+                assertEquals(whole, reader.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void connectTimesOutWithoutBlocking() throws Exception {
+        // Accepts the connection but never answers the handshake.
+        try (ServerSocket server = new ServerSocket(0)) {
+            URI uri = URI.create("ws://localhost:" + server.getLocalPort() + "/");
+            CoinbaseClient first = new CoinbaseClient(Coinbase.BITCOIN_USD);
+            CoinbaseClient second = new CoinbaseClient(Coinbase.BITCOIN_USD);
+
+            long start = System.nanoTime();
+            CompletableFuture<Void> all = CoinbaseClient.connectAll(uri, 300,
+                    TimeUnit.MILLISECONDS, first, second);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300));
+            try {
+                all.get(5, TimeUnit.SECONDS);
+                fail("Connected to a server that never answers");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            } finally {
+                first.closeSocket();
+                second.closeSocket();
+            }
+        }
+    }
+
+    /**
+     * Just enough of a WebSocket server to connect to: it records the text
+     * each connection sends, and can drop every connection.
+     */
+    private static class LocalFeed implements Closeable {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+        // What each connection sent, in the order they connected.
+        final List<List<String>> received = new CopyOnWriteArrayList<List<String>>();
+
+        LocalFeed() throws IOException {
+            Thread accepter = new Thread(this::accept, "LocalFeed");
+            accepter.setDaemon(true);
+            accepter.start();
+        }
+
+        URI getUri() {
+            return URI.create("ws://127.0.0.1:" + server.getLocalPort() + "/");
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    List<String> messages = new CopyOnWriteArrayList<String>();
+                    sockets.add(socket);
+                    received.add(messages);
+                    Thread connection = new Thread(() -> serve(socket, messages),
+                            "LocalFeed-connection");
+                    connection.setDaemon(true);
+                    connection.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket, List<String> messages) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                StringBuilder request = new StringBuilder();
+                while (request.indexOf("\r\n\r\n") < 0) {
+                    request.append((char) in.readUnsignedByte());
+                }
+                String key = request.substring(request.indexOf("Sec-WebSocket-Key:") + 18);
+                key = key.substring(0, key.indexOf("\r\n")).trim();
+                String accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance(
+                        "SHA-1").digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11")
+                        .getBytes(StandardCharsets.US_ASCII)));
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\nSec-WebSocket-Accept: " + accept + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                // Clients mask every frame.
+                while (true) {
+                    int opcode = in.readUnsignedByte() & 0xf;
+                    int length = in.readUnsignedByte() & 0x7f;
+                    if (length == 126) {
+                        length = in.readUnsignedShort();
+                    } else if (length == 127) {
+                        length = (int) in.readLong();
+                    }
+                    byte[] mask = new byte[4];
+                    in.readFully(mask);
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    for (int i = 0; i < length; i++) {
+                        payload[i] ^= mask[i % 4];
+                    }
+                    if (opcode == 1) {
+                        messages.add(new String(payload, StandardCharsets.UTF_8));
+                    } else if (opcode == 8) {
+                        out.write(new byte[] { (byte) 0x88, 0 });
+                        out.flush();
+                        socket.close();
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                // Dropped.
+            }
+        }
+
+        void dropAll() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            dropAll();
+        }
+    }
+
+    /**
+     * @return whether the condition came true within five seconds.
+     */
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Test
+    public void managedSocketReconnectsUntilClosed() throws Exception {
+        try (LocalFeed feed = new LocalFeed()) {
+            CoinbaseClient client = new CoinbaseClient();
+            client.setReconnectBackoff(50, 100);
+            try {
+                client.openManagedWebSocket(feed.getUri()).get(5, TimeUnit.SECONDS);
+                // A managed socket subscribes and asks for heartbeats.
+                assertTrue(eventually(() -> feed.received.get(0).size() == 2));
+                assertTrue(feed.received.get(0).get(1).contains("heartbeat"));
+
+                // Dropped by the server, it reconnects and subscribes again.
+                feed.dropAll();
+                assertTrue(eventually(() -> client.getReconnectCount() == 1
+                        && feed.received.size() == 2 && feed.received.get(1).size() == 2));
+            } finally {
+                client.closeSocket();
+            }
+
+            // Closed, it stays closed.
+            Thread.sleep(300);
+            assertEquals(2, feed.received.size());
+
+            // And a plain socket afterwards neither asks for heartbeats nor
+            // reconnects.
+            client.openWebSocket(feed.getUri());
+            try {
+                assertTrue(eventually(() -> feed.received.size() == 3
+                        && feed.received.get(2).size() == 1));
+                feed.dropAll();
+                Thread.sleep(300);
+                assertEquals(1, feed.received.get(2).size());
+                assertEquals(3, feed.received.size());
+                assertEquals(1, client.getReconnectCount());
+            } finally {
+                client.closeSocket();
+            }
+        }
+    }
+
+    @Test
+    public void ringWindowKeepsLatestValues() {
+        RingWindow window = new RingWindow(3);
+        assertTrue(window.isEmpty());
+        for (int i = 1; i <= 5; i++) {
+            window.add(i * 10, i * 1000, i);
+        }
+        assertEquals(3, window.size());
+        assertTrue(window.isFull());
+        assertEquals(30, window.getFirst(), 0);
+        assertEquals(50, window.getLast(), 0);
+        assertEquals(4000, window.getTime(1));
+        assertEquals(5, window.getLastSequence());
+
+        // Copied out oldest first, even though the ring has wrapped.
+        double[] values = new double[4];
+        assertEquals(3, window.copyTo(values, 1));
+        assertArrayEquals(new double[] { 0, 30, 40, 50 }, values, 0);
+        long[] times = new long[3];
+        window.copyTimesTo(times, 0);
+        assertArrayEquals(new long[] { 3000, 4000, 5000 }, times);
+
+        double[] total = new double[1];
+        window.forEach(value -> total[0] += value);
+        assertEquals(120, total[0], 0);
+
+        window.clear();
+        assertEquals(0, window.toArray().length);
+    }
+
+    @Test
+    public void statsWindowMatchesRecomputing() {
+        StatsWindow window = new StatsWindow(50);
+        Random random = new Random(7);
+        double price = 250;
+        for (int n = 1; n <= 1000; n++) {
+            price += random.nextGaussian();
+            window.add(price, random.nextDouble(), n, n);
+
+            // Everything worked out the slow way.
+            double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            double weighted = 0, weights = 0;
+            for (int i = 0; i < window.size(); i++) {
+                sum += window.get(i);
+                min = Math.min(min, window.get(i));
+                max = Math.max(max, window.get(i));
+                weighted += window.get(i) * window.getWeight(i);
+                weights += window.getWeight(i);
+            }
+            double mean = sum / window.size();
+            double squares = 0;
+            for (int i = 0; i < window.size(); i++) {
+                squares += (window.get(i) - mean) * (window.get(i) - mean);
+            }
+            double variance = window.size() < 2 ? 0 : squares / (window.size() - 1);
+
+            assertEquals(sum, window.getSum(), 1e-9);
+            assertEquals(mean, window.getMean(), 1e-9);
+            assertEquals(variance, window.getVariance(), 1e-6);
+            assertEquals(min, window.getMin(), 0);
+            assertEquals(max, window.getMax(), 0);
+            assertEquals(weighted / weights, window.getVwap(), 1e-9);
+        }
+    }
+    @Test
+    public void closedAgentIsNoLongerPublished() throws Exception {
+        PeerPressureAgent agent = new PeerPressureAgent(500, 4, 16);
+        MarketListener listener = agent.getListener();
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+        decoder.decode("{\"type\":\"match\",\"sequence\":1,\"price\":\"400\","
+                + "\"size\":\"1\",\"product_id\":\"BTC-USD\"}", event);
+
+        // Published on the first decision.
+        assertEquals(null, agent.getMetrics().getObjectName());
+        listener.onMarketEvent(event);
+        ObjectName name = agent.getMetrics().getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+
+        agent.close();
+        assertEquals(false, server.isRegistered(name));
+        // A straggling decision doesn't publish it again.
+        listener.onMarketEvent(event);
+        assertEquals(false, server.isRegistered(name));
+        assertEquals(2, agent.getMetrics().getDecisions());
+    }
+
+    @Test
+    public void binaryTicksRoundTripFromJournal() throws Exception {
+        String[] messages = {
+                "{\"type\":\"received\",\"sequence\":10,\"order_id\":"
+                        + "\"d50ec984-77a8-460a-b958-66f114b0de9b\",\"size\":\"0.00100000\","
+                        + "\"price\":\"443.00000000\",\"side\":\"buy\",\"product_id\":\"BTC-USD\"}",
+                "{\"type\":\"open\",\"sequence\":11,\"order_id\":"
+                        + "\"d50ec984-77a8-460a-b958-66f114b0de9b\",\"price\":\"443.00000000\","
+                        + "\"remaining_size\":\"0.00100000\",\"side\":\"buy\",\"product_id\":\"BTC-USD\"}",
+                "{\"type\":\"heartbeat\",\"sequence\":11,\"product_id\":\"BTC-USD\"}",
+                "{\"type\":\"match\",\"trade_id\":10,\"sequence\":12,"
+                        + "\"maker_order_id\":\"d50ec984-77a8-460a-b958-66f114b0de9b\","
+                        + "\"taker_order_id\":\"132fb6ae-456b-4654-b4e0-d681ac05cea1\","
+                        + "\"time\":\"2014-11-07T08:19:27.028459Z\",\"product_id\":\"BTC-USD\","
+                        + "\"size\":\"0.0005\",\"price\":\"443.00000000\",\"side\":\"buy\"}",
+                "{\"type\":\"done\",\"sequence\":13,\"order_id\":"
+                        + "\"d50ec984-77a8-460a-b958-66f114b0de9b\",\"price\":\"443.00000000\","
+                        + "\"remaining_size\":\"0.0005\",\"reason\":\"canceled\",\"side\":\"buy\","
+                        + "\"product_id\":\"BTC-USD\"}" };
+
+        Path directory = Files.createTempDirectory("ticks");
+        try (Journal journal = new Journal(directory.resolve("journal"))) {
+            for (int i = 0; i < messages.length; i++) {
+                journal.append(100 + i, 0, messages[i]);
+            }
+        }
+        Path tickFile = directory.resolve("ticks");
+        TickFile.Conversion conversion = TickFile.convert(directory.resolve("journal"), tickFile);
+        out.println(conversion);
+        assertEquals(4, conversion.ticks);
+        assertEquals(1, conversion.skipped);
+        assertEquals(3 * BinaryTick.ORDER_LENGTH + BinaryTick.MATCH_LENGTH, Files.size(tickFile));
+        // Type and side are stored as fixed codes, received (1) and buy (0),
+        // whatever order the enums are declared in.
+        byte[] bytes = Files.readAllBytes(tickFile);
+        assertEquals(1, bytes[0]);
+        assertEquals(0, bytes[1]);
+        assertEquals(MarketEvent.Type.DONE, MarketEvent.Type.ofCode(3));
+        assertEquals(MarketEvent.Side.SELL, MarketEvent.Side.ofCode(1));
+
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent expected = new MarketEvent();
+        MarketEvent actual = new MarketEvent();
+        try (TickFile.Reader reader = new TickFile.Reader(tickFile)) {
+            for (int i : new int[] { 0, 1, 3, 4 }) {
+                BinaryTick tick = reader.next();
+                assertEquals(100 + i, tick.getReceivedNanos());
+                decoder.decode(messages[i], expected);
+                tick.decode(actual);
+                assertEquals(expected.toString(), actual.toString());
+                assertEquals(expected.getRemainingSize(), actual.getRemainingSize(), 0);
+                assertEquals(expected.isCanceled(), actual.isCanceled());
+                assertEquals(expected.getOrderIdLow(), actual.getOrderIdLow());
+                assertEquals(expected.getMakerOrderIdHigh(), actual.getMakerOrderIdHigh());
+                assertEquals(expected.getTakerOrderIdLow(), actual.getTakerOrderIdLow());
+            }
+            assertEquals(null, reader.next());
+        }
+    }
+
+    @Test
+    public void candleArchiveStreamsIntoHistorian() throws Exception {
+        // A random walk of 10 second candles in cents, with a gap.
+        java.util.Random random = new java.util.Random(42);
+        Candles candles = new Candles();
+        double close = 350;
+        for (int i = 0; i < 10000; i++) {
+            double open = close;
+            close = Math.max(1, open + (random.nextInt(21) - 10) / 100.0);
+            double low = Math.min(open, close) - random.nextInt(5) / 100.0;
+            double high = Math.max(open, close) + random.nextInt(5) / 100.0;
+            long time = 1420070400L + 10 * i + (i > 5000 ? 3600 : 0);
+            candles.add(time, low, high, open, close, random.nextInt(1000) / 1000.0);
+        }
+
+        Path file = Files.createTempDirectory("archive").resolve("candles");
+        long bytes = CandleArchive.write(file, candles, 1000);
+        out.println(String.format("%d candles in %d bytes, %.1f bytes per candle", candles.size(),
+                bytes, (double) bytes / candles.size()));
+        assertTrue(bytes < candles.size() * Candles.COLUMNS * 8 * 3 / 4);
+
+        Candles read = CandleArchive.read(file);
+        assertEquals(candles.size(), read.size());
+        for (int column = 0; column < Candles.COLUMNS; column++) {
+            assertArrayEquals(Arrays.copyOf(candles.column(column), candles.size()),
+                    Arrays.copyOf(read.column(column), read.size()), 0);
+        }
+
+        History expected =
+                new Historian(candles.toRows()).extractOrders(20, TypeFilter.BUYS,
+                        SetFilter.TESTING);
+        History actual = new Historian(file).extractOrders(20, TypeFilter.BUYS, SetFilter.TESTING);
+        assertEquals(expected.features.length, actual.features.length);
+        for (int i = 0; i < expected.features.length; i++) {
+            assertArrayEquals(expected.features[i], actual.features[i], 0);
+        }
+        assertArrayEquals(expected.labels, actual.labels, 0);
+        assertArrayEquals(expected.volumes, actual.volumes, 0);
+    }
+
+    @Test
+    public void aggregateCandlesFromMatches() {
+        FeedDecoder decoder = new FeedDecoder();
+        MarketEvent event = new MarketEvent();
+        decoder.decode("{\"type\":\"match\",\"time\":\"2014-11-07T08:19:27.028459Z\"}", event);
+        assertEquals(java.time.Instant.parse("2014-11-07T08:19:27.028459Z").toEpochMilli() * 1000 + 459,
+                event.getTime());
+
+        CandleAggregator aggregator = new CandleAggregator(Coinbase.BITCOIN_USD, 10, 60);
+        List<double[]> closed = new ArrayList<double[]>();
+        aggregator.addListener((product, granularity, time, low, high, open, close, volume) -> {
+            if (granularity == 10) {
+                closed.add(new double[] { time, low, high, open, close, volume });
+            }
+        });
+        // Seconds into the minute, price and size.
+        double[][] trades = { { 1, 100, 1 }, { 5, 102, 2 }, { 9, 99, 1 }, { 12, 101, 3 },
+                { 45, 103, 1 }, { 61, 104, 2 } };
+        for (double[] trade : trades) {
+            int seconds = (int) trade[0];
+            decoder.decode("{\"type\":\"match\",\"product_id\":\"BTC-USD\",\"time\":"
+                    + String.format("\"2015-01-01T00:%02d:%02d.5Z\"", seconds / 60, seconds % 60)
+                    + ",\"price\":\"" + trade[1] + "\",\"size\":\"" + trade[2] + "\"}", event);
+            aggregator.onMarketEvent(event);
+        }
+        long minute = 1420070400;
+        assertEquals(3, aggregator.size(10));
+        assertArrayEquals(new double[] { minute, 99, 102, 100, 99, 4 }, closed.get(0), 0);
+        assertArrayEquals(new double[] { minute + 10, 101, 101, 101, 101, 3 }, closed.get(1), 0);
+        assertArrayEquals(new double[] { minute + 40, 103, 103, 103, 103, 1 }, closed.get(2), 0);
+        assertArrayEquals(new double[] { minute, 99, 103, 100, 103, 8 },
+                aggregator.getTimeline(60)[0], 0);
+        assertArrayEquals(new double[] { minute + 60, 104, 104, 104, 104, 2 },
+                aggregator.getOpenCandle(10), 0);
+
+        aggregator.advance((minute + 70) * 1000000);
+        assertEquals(4, aggregator.size(10));
+        assertEquals(null, aggregator.getOpenCandle(10));
+        assertEquals(2, aggregator.getTimeline(10, 2).length);
+    }
+
+    @Test
+    public void aggregateCandlesFromReplayedTicks() throws Exception {
+        // A trade every 20 seconds for 10 minutes, recorded long after it happened.
+        Path directory = Files.createTempDirectory("ticks");
+        try (Journal journal = new Journal(directory.resolve("journal"))) {
+            for (int i = 0; i < 30; i++) {
+                journal.append(System.currentTimeMillis() * 1000000, i + 1,
+                        "{\"type\":\"match\",\"sequence\":" + (i + 1) + ",\"time\":"
+                                + String.format("\"2015-01-01T00:%02d:%02d.5Z\"", i / 3, i % 3 * 20)
+                                + ",\"product_id\":\"BTC-USD\",\"price\":\"" + (100 + i)
+                                + "\",\"size\":\"1\"}");
+            }
+        }
+        Path tickFile = directory.resolve("ticks");
+        assertEquals(30, TickFile.convert(directory.resolve("journal"), tickFile).ticks);
+
+        CoinbaseClient client = new CoinbaseClient();
+        CandleAggregator aggregator = new CandleAggregator(Coinbase.BITCOIN_USD, 60);
+        client.addListener(aggregator);
+        assertEquals(30, new Replay(client, tickFile).run());
+
+        long minute = 1420070400;
+        double[][] timeline = aggregator.getTimeline(60);
+        assertEquals(9, timeline.length);
+        for (int i = 0; i < timeline.length; i++) {
+            double open = 100 + 3 * i;
+            assertArrayEquals(new double[] { minute + 60 * i, open, open + 2, open, open + 2, 3 },
+                    timeline[i], 0);
+        }
+        assertArrayEquals(new double[] { minute + 540, 127, 129, 127, 129, 3 },
+                aggregator.getOpenCandle(60), 0);
+    }
+
+    @Test
+    public void candlePyramidServesRollups() throws Exception {
+        try (CandleStore store = new CandleStore(Files.createTempDirectory("pyramid"))) {
+            CandlePyramid pyramid = new CandlePyramid(store, null, 1, 10, 60);
+
+            // An hour of 1 second candles; every seventh second has no trade.
+            long from = 1420070400;
+            long to = from + 3600;
+            Candles seconds = new Candles();
+            for (long t = from; t < to; t++) {
+                if (t % 7 != 0) {
+                    double price = 300 + Math.sin(t / 100.0) * 10;
+                    seconds.add(t, price - 1, price + 1, price - .5, price + .5, 0.25);
+                }
+            }
+            pyramid.add(Coinbase.BITCOIN_USD, from, to, seconds);
+
+            for (int granularity : new int[] { 1, 2, 10, 60, 120, 900 }) {
+                Candles expected = CandlePyramid.rollup(seconds, granularity);
+                Candles actual = pyramid.candles(Coinbase.BITCOIN_USD, from, to, granularity);
+                assertEquals(expected.size(), actual.size());
+                for (int column = 0; column < Candles.COLUMNS; column++) {
+                    assertArrayEquals(Arrays.copyOf(expected.column(column), expected.size()),
+                            Arrays.copyOf(actual.column(column), actual.size()), 1e-9);
+                }
+            }
+            assertEquals(0, store.missing(Coinbase.BITCOIN_USD, 60, from, to).size());
+
+            // There's no backfill, so anything not stored is an error.
+            try {
+                pyramid.candles(Coinbase.BITCOIN_USD, to, to + 60, 60);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void latencyHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (long nanos = 1; nanos <= 1000000; nanos++) {
+            histogram.record(nanos);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        out.println(snapshot);
+        assertEquals(1000000, snapshot.getCount());
+        assertEquals(500000.5, snapshot.getMean(), 0);
+        for (double percentile : new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+            double expected = percentile * 10000;
+            assertEquals(expected, snapshot.getValueAtPercentile(percentile), expected * .035);
+        }
+        assertEquals(1000000, snapshot.getMax(), 1000000 * .035);
+        assertEquals(0, histogram.snapshot().getCount());
+
+        // Small values are exact, huge ones are capped.
+        histogram.record(37);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(37, histogram.snapshot().getValueAtPercentile(50));
+        assertTrue(histogram.snapshot().getMax() >= TimeUnit.MINUTES.toNanos(18));
+    }
+
     @Test
     public void normalizeVector() {
         double[] patternA =